@@ -0,0 +1,224 @@
+package ru.salauyou.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.util.concurrent.Striped;
+
+
+/**
+ * Compares {@link LockKeeper}, {@link LockKeeperV2} and JDK/Guava
+ * alternatives: <tt>ConcurrentHashMap</tt> of <tt>ReentrantLock</tt>s
+ * (a lock per object) and Guava <tt>Striped</tt> locks. Each operation
+ * locks a set of random objects, does a bit of work and unlocks.
+ * <p>
+ * Contention is controlled by the number of distinct objects
+ * (<tt>keys</tt>), false conflicts by the number of stripes
+ * (<tt>segmentSizeLog</tt>; for the map of locks, it is initial 
+ * capacity, as <tt>computeIfAbsent</tt> locks a bin in JDK 8). 
+ * {@link LockKeeperV2} is run with compact (<tt>V2</tt>) and padded 
+ * (<tt>V2_PADDED</tt>) layout of stripe words. Throughput and sampled
+ * latency (which gives p99) are measured for 1, 2 and 8 threads,
+ * unless threads are given by <tt>-t</tt>.
+ * <p>
+ * Run with <tt>mvn -Pjmh test-compile exec:exec</tt>, passing JMH
+ * options by <tt>-Djmh.args="..."</tt>
+ *
+ * @author Salauyou
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockKeeperBenchmark {
+    
+    static final int[] THREADS = { 1, 2, 8 };
+    
+    @Param({ "V1", "V2", "V2_PADDED", "MAP", "STRIPED" })
+    String impl;
+    
+    @Param({ "1", "2", "8" })
+    int objects;
+    
+    @Param({ "64", "65536" })
+    int keys;
+    
+    @Param({ "6", "10" })
+    int segmentSizeLog;
+    
+    @Param({ "20" })
+    int work;
+    
+    Integer[] pool;
+    Locker locker;
+    
+    
+    @Setup
+    public void setup() {
+        pool = new Integer[keys];
+        for (int i = 0; i < keys; i++)
+            pool[i] = i;
+        switch (impl) {
+        case "V1":
+            LockKeeper v1 = new LockKeeper(segmentSizeLog);
+            locker = os -> v1.lockAndGet(os)::unlock;
+            break;
+        case "V2":
+        case "V2_PADDED":
+            LockKeeperV2 v2 = new LockKeeperV2(segmentSizeLog, impl.equals("V2_PADDED"));
+            locker = os -> v2.lockAndGet(os)::unlock;
+            break;
+        case "MAP":
+            locker = new MapLocker(1 << segmentSizeLog);
+            break;
+        case "STRIPED":
+            locker = new StripedLocker(1 << segmentSizeLog);
+            break;
+        default:
+            throw new IllegalArgumentException(impl);
+        }
+    }
+    
+    
+    @State(Scope.Thread)
+    public static class Keys {
+        Object[] keys;
+    }
+    
+    
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void throughput(Keys k) throws InterruptedException {
+        lockAndWork(k);
+    }
+    
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void latency(Keys k) throws InterruptedException {
+        lockAndWork(k);
+    }
+    
+    
+    void lockAndWork(Keys k) throws InterruptedException {
+        Object[] os = k.keys;
+        if (os == null || os.length != objects)
+            os = k.keys = new Object[objects];
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int i = 0; i < os.length; i++)
+            os[i] = pool[rnd.nextInt(keys)];
+        Runnable unlock = locker.lock(os);
+        try {
+            Blackhole.consumeCPU(work);
+        } finally {
+            unlock.run();
+        }
+    }
+    
+    
+    
+    /**
+     * Locks given objects and returns an action to unlock them
+     */
+    @FunctionalInterface
+    interface Locker {
+        Runnable lock(Object[] objects) throws InterruptedException;
+    }
+    
+    
+    
+    /**
+     * Lock per object, objects are locked in order of their hash codes
+     * (which are distinct for pooled integers) to avoid deadlocks
+     */
+    static final class MapLocker implements Locker {
+        
+        final ConcurrentHashMap<Object, ReentrantLock> locks;
+        
+        MapLocker(int capacity) {
+            locks = new ConcurrentHashMap<>(capacity);
+        }
+        
+        @Override
+        public Runnable lock(Object[] objects) {
+            Object[] sorted = objects.clone();
+            Arrays.sort(sorted, (o1, o2) -> Integer.compare(o1.hashCode(), o2.hashCode()));
+            List<Lock> acquired = new ArrayList<>(sorted.length);
+            for (Object o : sorted) {
+                Lock l = locks.computeIfAbsent(o, k -> new ReentrantLock());
+                l.lock();
+                acquired.add(l);
+            }
+            return () -> unlockAll(acquired);
+        }
+    }
+    
+    
+    
+    static final class StripedLocker implements Locker {
+        
+        final Striped<Lock> striped;
+        
+        StripedLocker(int stripes) {
+            striped = Striped.lock(stripes);
+        }
+        
+        @Override
+        public Runnable lock(Object[] objects) {
+            // `bulkGet` returns stripes in a consistent order
+            List<Lock> acquired = new ArrayList<>(objects.length);
+            for (Lock l : striped.bulkGet(Arrays.asList(objects))) {
+                l.lock();
+                acquired.add(l);
+            }
+            return () -> unlockAll(acquired);
+        }
+    }
+    
+    
+    
+    static void unlockAll(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--)
+            locks.get(i).unlock();
+    }
+    
+    
+    
+    /**
+     * Runs benchmarks for each of {@link #THREADS} thread counts,
+     * unless <tt>-t</tt> is given
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.getThreads().hasValue()) {
+            new Runner(cmd).run();
+            return;
+        }
+        for (int t : THREADS)
+            new Runner(new OptionsBuilder().parent(cmd).threads(t).build()).run();
+    }
+}
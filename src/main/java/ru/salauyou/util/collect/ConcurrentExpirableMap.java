@@ -0,0 +1,575 @@
+package ru.salauyou.util.collect;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+
+/**
+ * Concurrent version of {@link ExpirableMap}, backed by
+ * <tt>ConcurrentHashMap</tt>, where each entry has specified
+ * expiration time.
+ * <p>
+ * Reads take no locks: an expired entry is treated as absent,
+ * so it is guaranteed that no expired entries will be returned
+ * by {@link ConcurrentExpirableMap#get(Object)}. Deadlines are kept
+ * in stripes, each ordered by time (a key always belongs to the
+ * same stripe), and expired entries are removed by writes in small
+ * batches from the stripe of a written key, so the cost of clean-up
+ * is spread over writers. Alternatively, they can be removed in
+ * background by a sweeper (see {@link ConcurrentExpirableMap#enableSweeper}).
+ * <p>
+ * Null keys and values are not allowed. Iterators and spliterators
+ * of views are weakly consistent and skip entries which were expired 
+ * when iteration started; spliterators split as ones of
+ * <tt>ConcurrentHashMap</tt> do, so views can be streamed in parallel
+ *
+ * @author Salauyou
+ */
+public class ConcurrentExpirableMap<K, V> extends AbstractMap<K, V>
+                                          implements ConcurrentMap<K, V> {
+    
+    static final class Node<V> {
+        final V value;
+        final long deadline;        // Long.MAX_VALUE if never expires
+        
+        Node(V value, long deadline) {
+            this.value = Objects.requireNonNull(value);
+            this.deadline = deadline;
+        }
+        
+        boolean isExpired(long time) {
+            return deadline <= time;
+        }
+    }
+    
+    static final int DEFAULT_STRIPES = 16;
+    static final int CLEANUP_BATCH = 16;    // expired entries removed by a write
+    
+    final ConcurrentHashMap<K, Node<V>> data = new ConcurrentHashMap<>();
+    final ExpirationQueue<K>[] stripes;     // each is guarded by itself
+    final int mask;
+    final long defaultLifetime;
+    volatile ScheduledFuture<?> sweeper;
+    int sweepFrom;                          // stripe to start next pass from
+    
+    
+    
+    /**
+     * Creates ConcurrentExpirableMap and setups default lifetime
+     * for entries that will be added further.
+     *
+     * @param defaultLifetime default lifetime in ms
+     * @throws IllegalArgumentException if defaultLifetime < 0
+     */
+    public ConcurrentExpirableMap(long defaultLifetime) throws IllegalArgumentException {
+        this(defaultLifetime, DEFAULT_STRIPES);
+    }
+    
+    
+    /**
+     * Creates ConcurrentExpirableMap with given number of stripes
+     * keeping deadlines. More stripes mean less contention of writers
+     *
+     * @param defaultLifetime default lifetime in ms
+     * @param stripes number of stripes, rounded up to a power of two
+     * @throws IllegalArgumentException if defaultLifetime < 0
+     *         or stripes < 1
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ConcurrentExpirableMap(long defaultLifetime, int stripes)
+                                              throws IllegalArgumentException {
+        if (defaultLifetime < 0)
+            throw new IllegalArgumentException("defaultLifetime must be >= 0");
+        if (stripes < 1 || stripes > 1 << 16)
+            throw new IllegalArgumentException("stripes must be in [1, 65536]");
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+        this.stripes = new ExpirationQueue[n];
+        for (int i = 0; i < n; i++)
+            this.stripes[i] = new ExpirationQueue<>();
+        this.mask = n - 1;
+        this.defaultLifetime = defaultLifetime;
+    }
+    
+    
+    
+    //==============================================================
+    
+    
+    /**
+     * Starts removing expired entries in background by periodic
+     * passes, each removing at most given number of entries
+     * (stripes are visited in turn). While the sweeper runs, 
+     * writes don't clean up, so their time doesn't depend on 
+     * the number of expired entries. {@link ConcurrentExpirableMap#size()} 
+     * still removes all expired entries
+     * 
+     * @param scheduler executor to run passes in
+     * @param period delay between passes
+     * @param maxPerPass maximal number of entries removed by a pass
+     * @return future of the periodic task, which may be cancelled 
+     *         to stop sweeping and clean up by writes again
+     * @throws IllegalStateException if the sweeper is already running
+     * @throws IllegalArgumentException if maxPerPass < 1
+     */
+    public synchronized ScheduledFuture<?> enableSweeper(ScheduledExecutorService scheduler, 
+                                                         long period, TimeUnit unit, 
+                                                         int maxPerPass) {
+        if (maxPerPass < 1)
+            throw new IllegalArgumentException("maxPerPass must be >= 1");
+        if (isSweeping())
+            throw new IllegalStateException("Sweeper is already running");
+        sweeper = scheduler.scheduleWithFixedDelay(() -> sweep(maxPerPass), 
+                                                   period, period, unit);
+        return sweeper;
+    }
+    
+    
+    @Override
+    public int size() {
+        cleanUp();
+        return data.size();
+    }
+    
+    
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+    
+    
+    @Override
+    public boolean containsValue(Object value) {
+        Objects.requireNonNull(value);
+        long now = System.currentTimeMillis();
+        for (Node<V> n : data.values()) {
+            if (!n.isExpired(now) && value.equals(n.value))
+                return true;
+        }
+        return false;
+    }
+    
+    
+    @Override
+    public V get(Object key) {
+        Node<V> n = data.get(key);
+        return n == null || n.isExpired(System.currentTimeMillis()) ? null : n.value;
+    }
+    
+    
+    /**
+     * Puts an entry with default lifetime
+     */
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, defaultLifetime);
+    }
+    
+    
+    /**
+     * Puts an entry with specified lifetime
+     *
+     * @param lifetime    lifetime in ms
+     * @throws IllegalArgumentException if lifetime < 0
+     */
+    public V put(K key, V value, long lifetime) throws IllegalArgumentException {
+        long now = System.currentTimeMillis();
+        Node<V> node = new Node<>(value, deadline(now, lifetime));
+        return valueOf(update(key, now, n -> node));
+    }
+    
+    
+    /**
+     * Puts (K, V) which will never expire
+     */
+    public V putForever(K key, V value) {
+        Node<V> node = new Node<>(value, Long.MAX_VALUE);
+        return valueOf(update(key, System.currentTimeMillis(), n -> node));
+    }
+    
+    
+    /**
+     * Puts an entry with default lifetime if there is no entry
+     * for the key, or it is expired
+     */
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putIfAbsent(key, value, defaultLifetime);
+    }
+    
+    
+    /**
+     * Puts an entry with specified lifetime if there is no entry
+     * for the key, or it is expired
+     *
+     * @param lifetime    lifetime in ms
+     * @throws IllegalArgumentException if lifetime < 0
+     */
+    public V putIfAbsent(K key, V value, long lifetime) throws IllegalArgumentException {
+        long now = System.currentTimeMillis();
+        Node<V> node = new Node<>(value, deadline(now, lifetime));
+        return valueOf(update(key, now, n -> n == null ? node : n));
+    }
+    
+    
+    @Override
+    public V remove(Object key) {
+        return valueOf(update(key, System.currentTimeMillis(), n -> null));
+    }
+    
+    
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (value == null)
+            return false;     // as in ConcurrentHashMap, no null values
+        Node<V> prev = update(key, System.currentTimeMillis(),
+                              n -> n != null && value.equals(n.value) ? null : n);
+        return prev != null && value.equals(prev.value);
+    }
+    
+    
+    /**
+     * Replaces value of a key, keeping its expiration time
+     */
+    @Override
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        return valueOf(update(key, System.currentTimeMillis(),
+                              n -> n == null ? null : new Node<>(value, n.deadline)));
+    }
+    
+    
+    /**
+     * Replaces value of a key, keeping its expiration time
+     */
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        Node<V> prev = update(key, System.currentTimeMillis(),
+                n -> n != null && oldValue.equals(n.value) ? new Node<>(newValue, n.deadline) : n);
+        return prev != null && oldValue.equals(prev.value);
+    }
+    
+    
+    @Override
+    public void clear() {
+        for (K key : data.keySet())
+            remove(key);
+    }
+    
+    
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+    
+    
+    @Override
+    public Set<K> keySet() {
+        return new KeySet();
+    }
+    
+    
+    @Override
+    public Collection<V> values() {
+        return new Values();
+    }
+    
+    
+    private <T> Spliterator<T> spliterator(BiFunction<K, V, T> mapper, int notKept) {
+        long now = System.currentTimeMillis();
+        return new ExpiringSpliterator<Entry<K, Node<V>>, T>(data.entrySet().spliterator(), 
+                e -> !e.getValue().isExpired(now), 
+                e -> mapper.apply(e.getKey(), e.getValue().value), notKept);
+    }
+    
+    
+    
+    //==============================================================
+    
+    
+    static long deadline(long now, long lifetime) throws IllegalArgumentException {
+        if (lifetime < 0)
+            throw new IllegalArgumentException("lifetime must be >= 0");
+        long expTime = now + lifetime;
+        return expTime < 0 ? Long.MAX_VALUE : expTime;     // overflow!
+    }
+    
+    
+    static <V> V valueOf(Node<V> n) {
+        return n == null ? null : n.value;
+    }
+    
+    
+    ExpirationQueue<K> stripe(Object key) {
+        int h = key.hashCode();
+        return stripes[(h ^ h >>> 16) & mask];
+    }
+    
+    
+    /**
+     * Atomically replaces a node of a key by result of a given
+     * function, which accepts current node (null if absent or
+     * expired). Deadline of the key is updated together with
+     * the node, then a batch of expired entries is cleaned up
+     *
+     * @return previous node, if not expired
+     */
+    @SuppressWarnings("unchecked")
+    Node<V> update(Object key, long now, UnaryOperator<Node<V>> f) {
+        ExpirationQueue<K> q = stripe(key);
+        Object[] prev = new Object[1];
+        data.compute((K) key, (k, old) -> {
+            Node<V> cur = old == null || old.isExpired(now) ? null : old;
+            prev[0] = cur;
+            Node<V> node = f.apply(cur);
+            if (node != old) {
+                // under lock of the key, so deadlines of
+                // the same key are updated in order
+                synchronized (q) {
+                    if (node == null || node.deadline == Long.MAX_VALUE)
+                        q.cancel(k);
+                    else
+                        q.schedule(k, node.deadline);
+                }
+            }
+            return node;
+        });
+        if (!isSweeping())
+            cleanUp(q, now, CLEANUP_BATCH);
+        return (Node<V>) prev[0];
+    }
+    
+    
+    /**
+     * Removes at most given number of expired entries of a stripe
+     * @return number of removed deadlines
+     */
+    int cleanUp(ExpirationQueue<K> q, long now, int max) {
+        int n = 0;
+        while (n < max) {
+            K key;
+            // a stripe is never locked while a key is being computed,
+            // otherwise it could deadlock with `update`
+            synchronized (q) {
+                ExpirationQueue.Entry<K> e = q.pollExpired(now);
+                if (e == null)
+                    break;
+                key = e.key;
+            }
+            // the key could be updated meanwhile
+            data.computeIfPresent(key, (k, node) -> node.isExpired(now) ? null : node);
+            n++;
+        }
+        return n;
+    }
+    
+    
+    void cleanUp() {
+        long now = System.currentTimeMillis();
+        for (ExpirationQueue<K> q : stripes)
+            cleanUp(q, now, Integer.MAX_VALUE);
+    }
+    
+    
+    /**
+     * Removes at most given number of expired entries, visiting 
+     * stripes from the one next to where previous pass stopped
+     * @return number of removed deadlines
+     */
+    synchronized int sweep(int max) {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        int i = sweepFrom;
+        for (int k = 0; k < stripes.length && n < max; k++, i = (i + 1) & mask)
+            n += cleanUp(stripes[i], now, max - n);
+        sweepFrom = i;
+        return n;
+    }
+    
+    
+    boolean isSweeping() {
+        ScheduledFuture<?> s = sweeper;
+        return s != null && !s.isDone();
+    }
+    
+    
+    
+    //==============================================================
+    
+    
+    final class EntrySet extends AbstractSet<Entry<K, V>> {
+        
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new ViewIterator<>(SimpleImmutableEntry::new);
+        }
+        
+        @Override
+        public Spliterator<Entry<K, V>> spliterator() {
+            return ConcurrentExpirableMap.this.spliterator(SimpleImmutableEntry::new, 0);
+        }
+        
+        @Override
+        public int size() {
+            return ConcurrentExpirableMap.this.size();
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            V v = get(e.getKey());
+            return v != null && v.equals(e.getValue());
+        }
+        
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return ConcurrentExpirableMap.this.remove(e.getKey(), e.getValue());
+        }
+        
+        @Override
+        public void clear() {
+            ConcurrentExpirableMap.this.clear();
+        }
+    }
+    
+    
+    
+    final class KeySet extends AbstractSet<K> {
+        
+        @Override
+        public Iterator<K> iterator() {
+            return new ViewIterator<>((k, v) -> k);
+        }
+        
+        @Override
+        public Spliterator<K> spliterator() {
+            return ConcurrentExpirableMap.this.spliterator((k, v) -> k, 0);
+        }
+        
+        @Override
+        public int size() {
+            return ConcurrentExpirableMap.this.size();
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+        
+        @Override
+        public boolean remove(Object o) {
+            return ConcurrentExpirableMap.this.remove(o) != null;
+        }
+        
+        @Override
+        public void clear() {
+            ConcurrentExpirableMap.this.clear();
+        }
+    }
+    
+    
+    
+    final class Values extends AbstractCollection<V> {
+        
+        @Override
+        public Iterator<V> iterator() {
+            return new ViewIterator<>((k, v) -> v);
+        }
+        
+        @Override
+        public Spliterator<V> spliterator() {
+            return ConcurrentExpirableMap.this.spliterator((k, v) -> v, Spliterator.DISTINCT);
+        }
+        
+        @Override
+        public int size() {
+            return ConcurrentExpirableMap.this.size();
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+        
+        @Override
+        public void clear() {
+            ConcurrentExpirableMap.this.clear();
+        }
+    }
+    
+    
+    
+    /**
+     * Weakly consistent iterator, which skips entries expired 
+     * by the time of its creation. Removal is conditional, so 
+     * it doesn't remove an entry which was updated in meantime
+     */
+    final class ViewIterator<T> implements Iterator<T> {
+        
+        final Iterator<Entry<K, Node<V>>> it = data.entrySet().iterator();
+        final long now = System.currentTimeMillis();
+        final BiFunction<K, V, T> mapper;
+        K nextKey, lastKey;
+        V nextValue, lastValue;
+        
+        ViewIterator(BiFunction<K, V, T> mapper) {
+            this.mapper = mapper;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (nextKey == null && it.hasNext()) {
+                Entry<K, Node<V>> e = it.next();
+                Node<V> n = e.getValue();
+                if (!n.isExpired(now)) {
+                    nextKey = e.getKey();
+                    nextValue = n.value;
+                }
+            }
+            return nextKey != null;
+        }
+        
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            lastKey = nextKey;
+            lastValue = nextValue;
+            nextKey = null;
+            nextValue = null;
+            return mapper.apply(lastKey, lastValue);
+        }
+        
+        @Override
+        public void remove() {
+            if (lastKey == null)
+                throw new IllegalStateException();
+            ConcurrentExpirableMap.this.remove(lastKey, lastValue);
+            lastKey = null;
+            lastValue = null;
+        }
+    }
+    
+}
@@ -1,13 +1,22 @@
 package ru.salauyou.util.collect;
 
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
 
 
 /**
@@ -15,62 +24,145 @@ import java.util.Set;
  * specified expiration time. Clean-up of expired elements 
  * is performed automatically on every write/read operation, 
  * so it is guaranteed that no expired entries will be 
- * returned by {@link ExpirableMap#get(Object)}.
+ * returned by {@link ExpirableMap#get(Object)}. Alternatively, 
+ * they can be removed in background by a sweeper (see 
+ * {@link ExpirableMap#enableSweeper}).
+ * <p>
+ * The map may be bounded by number of entries or by their total 
+ * weight: when the bound is exceeded, least recently used entries
+ * (put or got) are evicted. An entry which alone exceeds the bound 
+ * is not kept (putting it just removes previous entry of its key).
  * <p>
  * Complexity of operations are similar to such in used 
- * backed map, except {@link ExpirableMap#put(Object, Object, long)}
- * and {@link ExpirableMap#remove(Object)}, that are O(n).
+ * backed map, plus O(log n) for maintaining deadlines in
+ * {@link ExpirableMap#put(Object, Object, long)}, 
+ * {@link ExpirableMap#putForever(Object, Object)} and 
+ * {@link ExpirableMap#remove(Object)}. Each expired entry
+ * is removed in O(log n) too.
  * <p>
- * <i>Iterators are not synchronized by expiration time (i. e.
- * can return expired elements). This wrong behavior is a subject 
- * for correction in further implementation</i>
+ * {@link ExpirableMap#entrySet()}, {@link ExpirableMap#keySet()} 
+ * and {@link ExpirableMap#values()} are views of the backed map, 
+ * which skip entries that were expired when iteration started.
+ * As with <tt>Collections.synchronizedMap</tt>, the map must be 
+ * synchronized on while iterating its views if it is modified 
+ * concurrently (this also makes parallel streams of the views 
+ * safe, as they only read the map)
  * 
  * @author Salauyou
  */
 public class ExpirableMap<K, V> extends AbstractMap<K, V> {
-
-    class ExpirationEntry {
-        final K key;
-        final long deadline;
-        
-        public ExpirationEntry(K key, long deadline) {
-            this.key = key;
-            this.deadline = deadline;
-        }
-    }
     
     final private Map<K, V> data;
     final private long defaultLifetime;
     
     
-    // list of keys sorted by expiration time 
-    // (closer to head -> sooner expiration)
-    private final List<ExpirationEntry> deadlines = new LinkedList<>(); 
+    // keys by expiration time (head -> sooner expiration)
+    private final ExpirationQueue<K> deadlines = new ExpirationQueue<>(); 
+    
+    private ScheduledFuture<?> sweeper;
+    
+    // keys in access order (eldest first) with weights 
+    // of their entries, if bounded
+    private final LinkedHashMap<K, Long> usage;
+    private final ToLongBiFunction<? super K, ? super V> weigher;
+    private final long maxWeight;
+    private long weight;
     
     
     //==============================================================
     
-    private void cleanUp(long time) {
-        Iterator<ExpirationEntry> i = deadlines.iterator();
-        ExpirationEntry e;
+    private int cleanUp(long time, int max) {
+        ExpirationQueue.Entry<K> e;
+        int n = 0;
         
         // remove expired entries
-        while (i.hasNext() && (e = i.next()).deadline <= time){
+        while (n < max && (e = deadlines.pollExpired(time)) != null) {
             data.remove(e.key);
+            untrack(e.key);
+            n++;
+        }
+        return n;
+    }
+    
+    
+    private void cleanUp(long time) {
+        cleanUp(time, Integer.MAX_VALUE);
+    }
+    
+    
+    /**
+     * Removes all expired entries, or, while the sweeper runs, 
+     * only an entry of given key if it is expired
+     */
+    private void cleanUp(long time, Object key) {
+        if (!isSweeping())
+            cleanUp(time);
+        else if (deadlines.deadline(key) <= time) {
+            deadlines.cancel(key);
+            data.remove(key);
+            untrack(key);
+        }
+    }
+    
+    
+    /**
+     * Records usage of an entry if the map is bounded, 
+     * then evicts least recently used entries to fit the bound.
+     * An entry heavier than the bound is evicted alone
+     */
+    private void track(K key, long w) {
+        if (usage == null)
+            return;
+        if (w > maxWeight) {
+            untrack(key);
+            deadlines.cancel(key);
+            data.remove(key);
+            return;
+        }
+        Long old = usage.put(key, w);
+        weight += old == null ? w : w - old;
+        Iterator<Entry<K, Long>> i = usage.entrySet().iterator();
+        while (weight > maxWeight && i.hasNext()) {
+            Entry<K, Long> eldest = i.next();
             i.remove();
+            weight -= eldest.getValue();
+            deadlines.cancel(eldest.getKey());
+            data.remove(eldest.getKey());
         }
     }
     
     
+    private long weigh(K key, V value) throws IllegalArgumentException {
+        if (usage == null)
+            return 0;
+        long w = weigher.applyAsLong(key, value);
+        if (w < 0)
+            throw new IllegalArgumentException("weight must be >= 0");
+        return w;
+    }
+    
+    
+    private void untrack(Object key) {
+        Long w;
+        if (usage != null && (w = usage.remove(key)) != null)
+            weight -= w;
+    }
+    
+    
+    private boolean isSweeping() {
+        return sweeper != null && !sweeper.isDone();
+    }
+    
+    
     private void cleanUp() {
         cleanUp(System.currentTimeMillis());
     }
-
+    
     
     
     //==============================================================
     
-
+    
     /**
      * Creates ExpirableMap and setups default lifetime 
      * for entries that will be added further.
@@ -85,6 +177,98 @@ public class ExpirableMap<K, V> extends AbstractMap<K, V> {
             throw new IllegalArgumentException("defaultLifetime must be >= 0");
         data = baseMap;
         this.defaultLifetime = defaultLifetime;
+        usage = null;
+        weigher = null;
+        maxWeight = Long.MAX_VALUE;
+    }
+    
+    
+    /**
+     * Creates ExpirableMap bounded by number of entries. 
+     * When it is exceeded, least recently used entries are evicted
+     * 
+     * @param baseMap backed map. All entries that it contains so far
+     *        become treated as stored with no deadline, i. e. "forever"
+     * @param defaultLifetime default lifetime in ms
+     * @param maxSize maximal number of entries
+     * @throws IllegalArgumentException if defaultLifetime < 0 
+     *         or maxSize < 0
+     */
+    public ExpirableMap(Map<K, V> baseMap, long defaultLifetime, long maxSize) 
+                                              throws IllegalArgumentException {
+        this(baseMap, defaultLifetime, maxSize, (k, v) -> 1);
+    }
+    
+    
+    /**
+     * Creates ExpirableMap bounded by total weight of entries. 
+     * When it is exceeded, least recently used entries are evicted. 
+     * An entry heavier than maxWeight is evicted at once, so other 
+     * entries are kept
+     * 
+     * @param baseMap backed map. All entries that it contains so far
+     *        become treated as stored with no deadline, i. e. "forever"
+     * @param defaultLifetime default lifetime in ms
+     * @param maxWeight maximal total weight of entries
+     * @param weigher function returning weight (>= 0) of an entry, 
+     *        which is computed when the entry is put
+     * @throws IllegalArgumentException if defaultLifetime < 0 
+     *         or maxWeight < 0
+     */
+    public ExpirableMap(Map<K, V> baseMap, long defaultLifetime, long maxWeight,
+                        ToLongBiFunction<? super K, ? super V> weigher) 
+                                              throws IllegalArgumentException {
+        if (defaultLifetime < 0)
+            throw new IllegalArgumentException("defaultLifetime must be >= 0");
+        if (maxWeight < 0)
+            throw new IllegalArgumentException("maxWeight must be >= 0");
+        data = baseMap;
+        this.defaultLifetime = defaultLifetime;
+        this.usage = new LinkedHashMap<>(16, 0.75f, true);
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        for (Entry<K, V> e : new ArrayList<>(baseMap.entrySet()))
+            track(e.getKey(), weigh(e.getKey(), e.getValue()));
+    }
+    
+    
+    /**
+     * Starts removing expired entries in background by periodic
+     * passes, each removing at most given number of entries.
+     * While the sweeper runs, other operations don't clean up: 
+     * reads and writes check only an entry of a given key, so 
+     * their time doesn't depend on the number of expired entries. 
+     * {@link ExpirableMap#size()} and {@link ExpirableMap#containsValue(Object)} 
+     * still remove all expired entries, while views skip expired 
+     * entries without removing them
+     * 
+     * @param scheduler executor to run passes in
+     * @param period delay between passes
+     * @param maxPerPass maximal number of entries removed by a pass
+     * @return future of the periodic task, which may be cancelled 
+     *         to stop sweeping and clean up on every operation again
+     * @throws IllegalStateException if the sweeper is already running
+     * @throws IllegalArgumentException if maxPerPass < 1
+     */
+    public synchronized ScheduledFuture<?> enableSweeper(ScheduledExecutorService scheduler, 
+                                                         long period, TimeUnit unit, 
+                                                         int maxPerPass) {
+        if (maxPerPass < 1)
+            throw new IllegalArgumentException("maxPerPass must be >= 1");
+        if (isSweeping())
+            throw new IllegalStateException("Sweeper is already running");
+        sweeper = scheduler.scheduleWithFixedDelay(() -> sweep(maxPerPass), 
+                                                   period, period, unit);
+        return sweeper;
+    }
+    
+    
+    /**
+     * Removes at most given number of expired entries
+     * @return number of removed entries
+     */
+    synchronized int sweep(int max) {
+        return cleanUp(System.currentTimeMillis(), max);
     }
     
     
@@ -93,34 +277,36 @@ public class ExpirableMap<K, V> extends AbstractMap<K, V> {
         cleanUp();
         return data.size();
     }
-
+    
     
     @Override
     public boolean isEmpty() {
         return size() == 0;
     }
-
+    
     
     @Override
     public synchronized boolean containsKey(Object key) {
-        cleanUp();
+        cleanUp(System.currentTimeMillis(), key);
         return data.containsKey(key);
     }
-
+    
     
     @Override
     public synchronized boolean containsValue(Object value) {
         cleanUp();
         return data.containsValue(value);
     }
-
+    
     
     @Override
     public synchronized V get(Object key) {        
-        cleanUp();
+        cleanUp(System.currentTimeMillis(), key);
+        if (usage != null)
+            usage.get(key);     // moves to the tail
         return data.get(key);
     }
-
+    
     
     /**
      * Puts an entry with default lifetime
@@ -129,7 +315,7 @@ public class ExpirableMap<K, V> extends AbstractMap<K, V> {
     public synchronized V put(K key, V value) {
         return put(key, value, defaultLifetime);
     }
-
+    
     
     /**    
      * Puts an entry with specified lifetime
@@ -140,23 +326,17 @@ public class ExpirableMap<K, V> extends AbstractMap<K, V> {
     public synchronized V put(K key, V value, long lifetime) throws IllegalArgumentException {
         if (lifetime < 0)
             throw new IllegalArgumentException("lifetime must be >= 0");
+        long w = weigh(key, value);
         long now = System.currentTimeMillis();
         long expTime = now + lifetime;
         if (expTime < 0) // overflow!
             expTime = Long.MAX_VALUE;
-        cleanUp(now);
-        int index = deadlines.size();
-
-        // iterate over entries looking where the new 
-        // expiration entry should be inserted
-        ListIterator<ExpirationEntry> i = deadlines.listIterator(deadlines.size());
-        while (i.hasPrevious() && i.previous().deadline > expTime)
-            index--;
-        if (index == deadlines.size())
-            deadlines.add(new ExpirationEntry(key, expTime));
-        else
-            deadlines.add(index, new ExpirationEntry(key, expTime));
-        return data.put(key, value);
+        cleanUp(now, key);
+        // previous deadline of the key, if any, is replaced
+        deadlines.schedule(key, expTime);
+        V prev = data.put(key, value);
+        track(key, w);
+        return prev;
     }
     
     
@@ -164,40 +344,245 @@ public class ExpirableMap<K, V> extends AbstractMap<K, V> {
      * Puts (K, V) which will never expire
      */
     public synchronized V putForever(K key, V value) {   
-        cleanUp();
-        return data.put(key, value);
+        long w = weigh(key, value);
+        cleanUp(System.currentTimeMillis(), key);
+        deadlines.cancel(key);
+        V prev = data.put(key, value);
+        track(key, w);
+        return prev;
     }
     
     
     @Override
     public synchronized V remove(Object key) {
-        cleanUp();
-        // search for corresponding expiration entry 
-        // to remove it together with data entry
-        Iterator<ExpirationEntry> i = deadlines.iterator();
-        ExpirationEntry e;
-        while (i.hasNext()) {
-            e = i.next();
-            if (Objects.equals(key, e.key)) {
-                i.remove();
-                return data.remove(key);
-            }
-        }
+        cleanUp(System.currentTimeMillis(), key);
+        deadlines.cancel(key);
+        untrack(key);
         return data.remove(key);
     }
-
+    
     
     @Override
     public synchronized void clear() {
         data.clear();
         deadlines.clear();
+        if (usage != null) {
+            usage.clear();
+            weight = 0;
+        }
     }
     
-
+    
     @Override
-    public synchronized Set<Entry<K, V>> entrySet() {
-        cleanUp();
-        return data.entrySet();
+    public Set<Entry<K, V>> entrySet() {
+        return new EntrySet();
     }
-
+    
+    
+    @Override
+    public Set<K> keySet() {
+        return new KeySet();
+    }
+    
+    
+    @Override
+    public Collection<V> values() {
+        return new Values();
+    }
+    
+    
+    private synchronized boolean containsEntry(Object key, Object value) {
+        cleanUp(System.currentTimeMillis(), key);
+        return data.containsKey(key) && Objects.equals(value, data.get(key));
+    }
+    
+    
+    private synchronized boolean removeEntry(Object key, Object value) {
+        if (!containsEntry(key, value))
+            return false;
+        remove(key);
+        return true;
+    }
+    
+    
+    private <T> Spliterator<T> spliterator(Function<Entry<K, V>, T> mapper, int notKept) {
+        long now = System.currentTimeMillis();
+        return new ExpiringSpliterator<>(data.entrySet().spliterator(), 
+                e -> deadlines.deadline(e.getKey()) > now, mapper, notKept);
+    }
+    
+    
+    
+    //==============================================================
+    
+    
+    /**
+     * Iterator over not expired entries of the backed map. If 
+     * <tt>hasNext()</tt> has already moved the backed iterator 
+     * past the last returned entry, removing it makes the entry 
+     * expired at once, and it is dropped by the next clean-up
+     */
+    final class ViewIterator<T> implements Iterator<T> {
+        
+        final Iterator<Entry<K, V>> it = data.entrySet().iterator();
+        final long now = System.currentTimeMillis();
+        final Function<Entry<K, V>, T> mapper;
+        Entry<K, V> next;
+        Entry<K, V> last;
+        boolean moved;      // backed iterator is past `last`
+        
+        ViewIterator(Function<Entry<K, V>, T> mapper) {
+            this.mapper = mapper;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (next == null && it.hasNext()) {
+                Entry<K, V> e = it.next();
+                moved = true;
+                if (deadlines.deadline(e.getKey()) > now)
+                    next = e;
+            }
+            return next != null;
+        }
+        
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next;
+            next = null;
+            moved = false;
+            return mapper.apply(last);
+        }
+        
+        @Override
+        public void remove() {
+            if (last == null)
+                throw new IllegalStateException();
+            synchronized (ExpirableMap.this) {
+                K key = last.getKey();
+                if (!moved) {
+                    it.remove();
+                    deadlines.cancel(key);
+                } else
+                    deadlines.schedule(key, Long.MIN_VALUE);
+                untrack(key);
+            }
+            last = null;
+        }
+    }
+    
+    
+    
+    final class EntrySet extends AbstractSet<Entry<K, V>> {
+        
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new ViewIterator<>(e -> e);
+        }
+        
+        @Override
+        public Spliterator<Entry<K, V>> spliterator() {
+            return ExpirableMap.this.spliterator(e -> e, 0);
+        }
+        
+        @Override
+        public int size() {
+            return ExpirableMap.this.size();
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return containsEntry(e.getKey(), e.getValue());
+        }
+        
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Entry))
+                return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return removeEntry(e.getKey(), e.getValue());
+        }
+        
+        @Override
+        public void clear() {
+            ExpirableMap.this.clear();
+        }
+    }
+    
+    
+    
+    final class KeySet extends AbstractSet<K> {
+        
+        @Override
+        public Iterator<K> iterator() {
+            return new ViewIterator<>(Entry::getKey);
+        }
+        
+        @Override
+        public Spliterator<K> spliterator() {
+            return ExpirableMap.this.spliterator(Entry::getKey, 0);
+        }
+        
+        @Override
+        public int size() {
+            return ExpirableMap.this.size();
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+        
+        @Override
+        public boolean remove(Object o) {
+            synchronized (ExpirableMap.this) {
+                if (!containsKey(o))
+                    return false;
+                ExpirableMap.this.remove(o);
+                return true;
+            }
+        }
+        
+        @Override
+        public void clear() {
+            ExpirableMap.this.clear();
+        }
+    }
+    
+    
+    
+    final class Values extends AbstractCollection<V> {
+        
+        @Override
+        public Iterator<V> iterator() {
+            return new ViewIterator<>(Entry::getValue);
+        }
+        
+        @Override
+        public Spliterator<V> spliterator() {
+            return ExpirableMap.this.spliterator(Entry::getValue, 
+                    Spliterator.DISTINCT | Spliterator.NONNULL);
+        }
+        
+        @Override
+        public int size() {
+            return ExpirableMap.this.size();
+        }
+        
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+        
+        @Override
+        public void clear() {
+            ExpirableMap.this.clear();
+        }
+    }
+    
 }
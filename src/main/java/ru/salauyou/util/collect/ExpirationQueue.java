@@ -0,0 +1,161 @@
+package ru.salauyou.util.collect;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Deadlines of keys, ordered by time. A binary min-heap,
+ * where each entry knows its position, plus a map from keys
+ * to entries, so scheduling and cancelling a key are O(log n).
+ * Keys with equal deadlines expire in order they were scheduled.
+ * <p>
+ * Not thread-safe
+ *
+ * @author Salauyou
+ */
+final class ExpirationQueue<K> {
+    
+    static final class Entry<K> {
+        final K key;
+        final long deadline;
+        final long seq;
+        int index;          // position in the heap
+        
+        Entry(K key, long deadline, long seq) {
+            this.key = key;
+            this.deadline = deadline;
+            this.seq = seq;
+        }
+        
+        boolean before(Entry<K> e) {
+            return deadline < e.deadline || deadline == e.deadline && seq < e.seq;
+        }
+    }
+    
+    private final List<Entry<K>> heap = new ArrayList<>();
+    private final Map<K, Entry<K>> entries = new HashMap<>();
+    private long seq;
+    
+    
+    /**
+     * Sets deadline of a key, replacing previous one
+     */
+    void schedule(K key, long deadline) {
+        Entry<K> e = new Entry<>(key, deadline, seq++);
+        Entry<K> old = entries.put(key, e);
+        if (old != null)
+            removeAt(old.index);
+        e.index = heap.size();
+        heap.add(e);
+        siftUp(e.index);
+    }
+    
+    
+    /**
+     * Removes deadline of a key, if any
+     * @return true if the key had a deadline
+     */
+    boolean cancel(Object key) {
+        Entry<K> e = entries.remove(key);
+        if (e == null)
+            return false;
+        removeAt(e.index);
+        return true;
+    }
+    
+    
+    /**
+     * Returns deadline of a key, or <tt>Long.MAX_VALUE</tt> if it has none
+     */
+    long deadline(Object key) {
+        Entry<K> e = entries.get(key);
+        return e == null ? Long.MAX_VALUE : e.deadline;
+    }
+    
+    
+    /**
+     * Returns the soonest deadline, or <tt>Long.MAX_VALUE</tt> if empty
+     */
+    long peekDeadline() {
+        return heap.isEmpty() ? Long.MAX_VALUE : heap.get(0).deadline;
+    }
+    
+    
+    /**
+     * Removes and returns the soonest entry if it is expired
+     * by given time, otherwise returns null
+     */
+    Entry<K> pollExpired(long time) {
+        if (heap.isEmpty() || heap.get(0).deadline > time)
+            return null;
+        Entry<K> e = heap.get(0);
+        entries.remove(e.key);
+        removeAt(0);
+        return e;
+    }
+    
+    
+    int size() {
+        return heap.size();
+    }
+    
+    
+    void clear() {
+        heap.clear();
+        entries.clear();
+    }
+    
+    
+    
+    private void removeAt(int i) {
+        Entry<K> last = heap.remove(heap.size() - 1);
+        if (i == heap.size())
+            return;
+        heap.set(i, last);
+        last.index = i;
+        siftDown(i);
+        if (heap.get(i) == last)
+            siftUp(i);
+    }
+    
+    
+    private void siftUp(int i) {
+        Entry<K> e = heap.get(i);
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            Entry<K> pe = heap.get(p);
+            if (!e.before(pe))
+                break;
+            heap.set(i, pe);
+            pe.index = i;
+            i = p;
+        }
+        heap.set(i, e);
+        e.index = i;
+    }
+    
+    
+    private void siftDown(int i) {
+        int size = heap.size();
+        Entry<K> e = heap.get(i);
+        for (;;) {
+            int c = 2 * i + 1;
+            if (c >= size)
+                break;
+            Entry<K> ce = heap.get(c);
+            if (c + 1 < size && heap.get(c + 1).before(ce))
+                ce = heap.get(++c);
+            if (!ce.before(e))
+                break;
+            heap.set(i, ce);
+            ce.index = i;
+            i = c;
+        }
+        heap.set(i, e);
+        e.index = i;
+    }
+    
+}
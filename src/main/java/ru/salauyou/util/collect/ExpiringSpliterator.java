@@ -0,0 +1,100 @@
+package ru.salauyou.util.collect;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+
+/**
+ * Spliterator over entries of a backed map, which skips
+ * expired entries and maps the rest to elements of a view
+ * (entries, keys or values). Splits as the backed one does,
+ * so views of expirable maps can be streamed in parallel.
+ * Size is not known exactly, as expired entries are
+ * filtered out lazily
+ *
+ * @author Salauyou
+ */
+final class ExpiringSpliterator<E, T> implements Spliterator<T> {
+    
+    static final int NOT_KEPT = SIZED | SUBSIZED | SORTED;
+    
+    final Spliterator<E> source;
+    final Predicate<? super E> live;
+    final Function<? super E, ? extends T> mapper;
+    final int characteristics;
+    
+    
+    /**
+     * @param live tells if an entry isn't expired
+     * @param mapper maps entries to elements
+     * @param notKept characteristics which mapped elements
+     *        don't keep, in addition to size and order ones
+     */
+    ExpiringSpliterator(Spliterator<E> source, Predicate<? super E> live,
+                        Function<? super E, ? extends T> mapper, int notKept) {
+        this.source = source;
+        this.live = live;
+        this.mapper = mapper;
+        this.characteristics = source.characteristics() & ~(NOT_KEPT | notKept);
+    }
+    
+    
+    private ExpiringSpliterator(ExpiringSpliterator<E, T> parent, Spliterator<E> source) {
+        this.source = source;
+        this.live = parent.live;
+        this.mapper = parent.mapper;
+        this.characteristics = parent.characteristics;
+    }
+    
+    
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        boolean[] found = new boolean[1];
+        while (!found[0]) {
+            boolean advanced = source.tryAdvance(e -> {
+                if (live.test(e)) {
+                    found[0] = true;
+                    action.accept(mapper.apply(e));
+                }
+            });
+            if (!advanced)
+                return false;
+        }
+        return true;
+    }
+    
+    
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        source.forEachRemaining(e -> {
+            if (live.test(e))
+                action.accept(mapper.apply(e));
+        });
+    }
+    
+    
+    @Override
+    public Spliterator<T> trySplit() {
+        Spliterator<E> s = source.trySplit();
+        return s == null ? null : new ExpiringSpliterator<>(this, s);
+    }
+    
+    
+    /**
+     * Returns size of the backed part, which is
+     * an upper bound of the number of elements
+     */
+    @Override
+    public long estimateSize() {
+        return source.estimateSize();
+    }
+    
+    
+    @Override
+    public int characteristics() {
+        return characteristics;
+    }
+    
+}
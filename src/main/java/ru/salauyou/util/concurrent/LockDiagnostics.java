@@ -0,0 +1,234 @@
+package ru.salauyou.util.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+
+/**
+ * Deadlock and starvation diagnostics of a lock keeper ({@link LockKeeper},
+ * {@link LockKeeperV2}), working after it is enabled by
+ * <tt>enableDiagnostics()</tt>. Keepers that don't run diagnostics
+ * pay only for a null check.
+ * <p>
+ * While enabled, owners of stripes are recorded: threads, or locks
+ * obtained asynchronously (which are not owned by any thread).
+ * Inspection builds a wait-for graph, where a waiter points to
+ * owners of a stripe it is blocked on, and reports its cycles
+ * (deadlocks) and waiters which wait longer than a given threshold.
+ * Inspection doesn't stop acquisitions, so the graph is not
+ * an atomic snapshot: a cycle is reliable if it is reported
+ * repeatedly
+ *
+ * @author Salauyou
+ */
+public final class LockDiagnostics {
+    
+    final Map<Object, Map<Object, Integer>> owners = new ConcurrentHashMap<>();
+    final Supplier<Collection<Wait>> waits;
+    
+    
+    LockDiagnostics(Supplier<Collection<Wait>> waits) {
+        this.waits = waits;
+    }
+    
+    
+    // ------------- recording ------------- //
+    
+    void acquired(Object stripe, Object owner) {
+        owners.computeIfAbsent(stripe, s -> new ConcurrentHashMap<>())
+              .merge(owner, 1, Integer::sum);
+    }
+    
+    
+    void released(Object stripe, Object owner) {
+        Map<Object, Integer> m = owners.get(stripe);
+        if (m != null)
+            m.computeIfPresent(owner, (o, c) -> c == 1 ? null : c - 1);
+    }
+    
+    
+    /**
+     * A waiter blocked on a stripe since given time
+     * (by <tt>System.nanoTime()</tt>, 0 if unknown)
+     */
+    static final class Wait {
+        
+        final Object waiter;
+        final Object stripe;
+        final long since;
+        
+        Wait(Object waiter, Object stripe, long since) {
+            this.waiter = waiter;
+            this.stripe = stripe;
+            this.since = since;
+        }
+    }
+    
+    
+    // ------------- inspection ------------- //
+    
+    /**
+     * Returns current owners of all stripes, which are held
+     */
+    public Map<Object, Collection<Object>> getOwners() {
+        Map<Object, Collection<Object>> res = new HashMap<>();
+        owners.forEach((s, m) -> {
+            if (!m.isEmpty())
+                res.put(s, new ArrayList<>(m.keySet()));
+        });
+        return res;
+    }
+    
+    
+    /**
+     * Builds the wait-for graph and finds deadlocks and waiters
+     * waiting longer than given time
+     */
+    public Report inspect(long starvationThreshold, TimeUnit unit) {
+        long now = System.nanoTime();
+        long threshold = unit.toNanos(starvationThreshold);
+        Map<Object, List<Object>> graph = new IdentityHashMap<>();
+        Map<Object, Long> starved = new LinkedHashMap<>();
+        Map<Object, Object> blockedOn = new IdentityHashMap<>();
+        for (Wait w : waits.get()) {
+            Map<Object, Integer> m = owners.get(w.stripe);
+            List<Object> edges = graph.computeIfAbsent(w.waiter, k -> new ArrayList<>());
+            if (m != null)
+                edges.addAll(m.keySet());
+            blockedOn.put(w.waiter, w.stripe);
+            if (w.since != 0 && now - w.since > threshold)
+                starved.put(w.waiter, now - w.since);
+        }
+        return new Report(findCycles(graph), starved, blockedOn);
+    }
+    
+    
+    /**
+     * Inspects periodically, passing non-empty reports to given consumer
+     * @return future of the periodic task, which may be cancelled
+     */
+    public ScheduledFuture<?> schedule(ScheduledExecutorService scheduler,
+                                       long period, TimeUnit unit,
+                                       long starvationThreshold, TimeUnit thresholdUnit,
+                                       Consumer<? super Report> consumer) {
+        return scheduler.scheduleWithFixedDelay(() -> {
+            Report r = inspect(starvationThreshold, thresholdUnit);
+            if (!r.isEmpty())
+                consumer.accept(r);
+        }, period, period, unit);
+    }
+    
+    
+    
+    /**
+     * Depth-first search (iterative, as chains of waiters may be long), 
+     * which reports a cycle for each found back edge
+     */
+    static List<List<Object>> findCycles(Map<Object, List<Object>> graph) {
+        List<List<Object>> cycles = new ArrayList<>();
+        Map<Object, Boolean> visited = new IdentityHashMap<>();   // false while on path
+        List<Object> path = new ArrayList<>();
+        Deque<Iterator<Object>> edges = new ArrayDeque<>();
+        for (Object start : graph.keySet()) {
+            if (visited.containsKey(start))
+                continue;
+            visited.put(start, false);
+            path.add(start);
+            edges.push(graph.get(start).iterator());
+            while (!edges.isEmpty()) {
+                Iterator<Object> it = edges.peek();
+                if (!it.hasNext()) {
+                    edges.pop();
+                    visited.put(path.remove(path.size() - 1), true);
+                    continue;
+                }
+                Object next = it.next();
+                Boolean v = visited.get(next);
+                if (v == null) {
+                    visited.put(next, false);
+                    path.add(next);
+                    edges.push(graph.getOrDefault(next, Collections.emptyList()).iterator());
+                } else if (!v) {
+                    int i = path.lastIndexOf(next);
+                    cycles.add(new ArrayList<>(path.subList(i, path.size())));
+                }
+            }
+        }
+        return cycles;
+    }
+    
+    
+    
+    /**
+     * Result of an inspection. Waiters and owners are threads,
+     * or (for asynchronous locks) futures and locks
+     */
+    public static final class Report {
+        
+        final List<List<Object>> cycles;
+        final Map<Object, Long> starved;
+        final Map<Object, Object> blockedOn;
+        
+        Report(List<List<Object>> cycles, Map<Object, Long> starved,
+               Map<Object, Object> blockedOn) {
+            this.cycles = Collections.unmodifiableList(cycles);
+            this.starved = Collections.unmodifiableMap(starved);
+            this.blockedOn = blockedOn;
+        }
+        
+        
+        /**
+         * Found cycles of the wait-for graph: each waiter in
+         * a cycle waits for a stripe owned by the next one,
+         * the last one waits for the first one
+         */
+        public List<List<Object>> getCycles() {
+            return cycles;
+        }
+        
+        
+        /**
+         * Waiters waiting longer than the threshold, with
+         * their waiting time in nanoseconds
+         */
+        public Map<Object, Long> getStarved() {
+            return starved;
+        }
+        
+        
+        public boolean isEmpty() {
+            return cycles.isEmpty() && starved.isEmpty();
+        }
+        
+        
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (List<Object> c : cycles) {
+                sb.append("Deadlock:");
+                for (Object w : c)
+                    sb.append("\n  ").append(w).append(" waits on stripe ").append(blockedOn.get(w));
+                sb.append('\n');
+            }
+            starved.forEach((w, t) -> sb.append("Starved: ").append(w)
+                    .append(" waits ").append(TimeUnit.NANOSECONDS.toMillis(t))
+                    .append(" ms on stripe ").append(blockedOn.get(w)).append('\n'));
+            return sb.toString();
+        }
+    }
+}
@@ -1,21 +1,22 @@
 package ru.salauyou.util.concurrent;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Deque;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 
 
 /**
@@ -29,7 +30,12 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * 
  * <p><tt>lockAndGet()</tt> method is blocking, it waits until all needed locks can be acquired,
  * and returns <tt>Lock</tt> object which supports only <tt>unlock()</tt> method
- * to be called after operations on objects are finished.
+ * to be called after operations on objects are finished. <tt>tryLockAndGet()</tt> methods
+ * wait limited time (or don't wait at all) and return <tt>null</tt> if locks 
+ * were not acquired.
+ * 
+ * <p>Waiting threads are parked without holding any monitor or shared lock, 
+ * and are woken in parallel when locks they wait for are released.
  * 
  * @author Salauyou
  */
@@ -40,12 +46,30 @@ public final class LockKeeper {
     public static enum LockType { READ, WRITE };
         
     private final int mask;
-    private final Map<Class<?>, ReentrantReadWriteLock[]> lockStorage = new HashMap<>();
-    private final ReentrantReadWriteLock[] objectLockStorage;
+    private final IntUnaryOperator spreader;
+    private final Map<Class<?>, Integer> shiftsForClasses = new HashMap<>();
+    private final ReentrantReadWriteLock[] stripes;   // lock sets of all classes
+    private static final ReentrantReadWriteLock[] NO_LOCKS = new ReentrantReadWriteLock[0];
     private boolean classed;
+    private volatile LockStats stats;
+    private volatile LockDiagnostics diagnostics;
+    private final Map<Thread, LockDiagnostics.Wait> waits = new ConcurrentHashMap<>();
+    
+    // lock set for a class is resolved once, honouring subclasses 
+    // of the classes passed to constructor
+    private final ClassValue<Integer> shifts = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> cl) {
+            Integer sh = null;
+            while (cl != null && (sh = shiftsForClasses.get(cl)) == null)
+                cl = cl.getSuperclass();
+            return sh == null ? 0 : sh;
+        }
+    };
     
-    final Lock queueLock = new ReentrantLock();
-    final Deque<Waiter> waiters = new LinkedList<>();
+    // threads waiting for multiple locks; they are unparked by releasing 
+    // threads and try to acquire locks themselves
+    final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
 
     
     /**
@@ -67,22 +91,35 @@ public final class LockKeeper {
      *                      means that 1024 segments will be created)
      * @param classes       classes that are supposed to be used (LockKeeper 
      *                      will create separate lock set for every class from 
-     *                      the list, and one common set for rest)
+     *                      the list, used also for its subclasses, and one 
+     *                      common set for rest)
      */
     public LockKeeper(int segmentPower, Class<?>... classes) {
+        this(segmentPower, Spreaders.MURMUR3, classes);
+    }
+    
+    
+    
+    /**
+     * Creates new <tt>LockKeeper</tt> for given types, number of segments
+     * and hash spreader
+     * 
+     * @param segmentPower  power of 2 base of desired segment number
+     * @param spreader      function applied to hash codes of objects 
+     *                      before choosing a segment (see {@link Spreaders})
+     * @param classes       classes that are supposed to be used
+     */
+    public LockKeeper(int segmentPower, IntUnaryOperator spreader, Class<?>... classes) {
         mask = (1 << segmentPower) - 1;
+        this.spreader = Objects.requireNonNull(spreader);
         for (Class<?> clazz : classes) {
             if (clazz != null) {
-                ReentrantReadWriteLock[] ls = new ReentrantReadWriteLock[1 << segmentPower];
-                for (int i = 0; i < ls.length; i++) {
-                    ls[i] = new ReentrantReadWriteLock();
-                }
-                lockStorage.put(clazz, ls);
+                shiftsForClasses.putIfAbsent(clazz, (mask + 1) * (shiftsForClasses.size() + 1));
             }
         }
-        objectLockStorage = new ReentrantReadWriteLock[1 << segmentPower];
-        for (int i = 0; i < objectLockStorage.length; i++) {
-            objectLockStorage[i] = new ReentrantReadWriteLock();
+        stripes = new ReentrantReadWriteLock[(mask + 1) * (shiftsForClasses.size() + 1)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
         }
         classed = true;
     }
@@ -103,12 +140,20 @@ public final class LockKeeper {
      */
     public Lock lockAndGet(LockType lockType, Object o) throws InterruptedException {
         if (o != null) {
-            ReadWriteLock lock = forObject(o);
-            Lock lo = lockType == LockType.READ ? lock.readLock() : lock.writeLock();
-            lo.lock();
-            return new CompositeLock(Arrays.asList(lock), lockType, this);
+            return lockSingle(stripeForObject(o), lockType);
         }
-        return new CompositeLock(Collections.emptyList(), lockType, this);
+        return new CompositeLock(NO_LOCKS, lockType, this);
+    }
+    
+    
+    
+    /**
+     * Returns a lock in locked state for given primitive key, without 
+     * boxing it. The key is locked by the same segment as its boxed 
+     * <tt>Long</tt> value would be
+     */
+    public Lock lockAndGetByKey(LockType lockType, long key) throws InterruptedException {
+        return lockSingle(stripeForKey(key), lockType);
     }
     
     
@@ -138,54 +183,403 @@ public final class LockKeeper {
      */
     public Lock lockAndGet(LockType lockType, Object... objects) 
                                                         throws InterruptedException {
-        if (objects.length == 0)
-            return new CompositeLock(Collections.emptyList(), lockType, this);
-        
-        List<ReentrantReadWriteLock> locks = new ArrayList<>(objects.length);
+        return acquire(lockType, objects, false, 0);
+    }
+    
+    
+    
+    /**
+     * Returns exclusive (write) lock in a locked state for given object 
+     * if it is available immediately, otherwise <tt>null</tt>
+     */
+    public Lock tryLockAndGet(Object o) {
+        return tryLockAndGet(LockType.WRITE, o);
+    }
+    
+    
+    
+    /**
+     * Returns a lock in locked state for given object if it is 
+     * available immediately, otherwise <tt>null</tt>
+     */
+    public Lock tryLockAndGet(LockType lockType, Object o) {
+        if (o != null) {
+            ReentrantReadWriteLock lock = stripes[stripeForObject(o)];
+            Lock lo = lockType == LockType.READ ? lock.readLock() : lock.writeLock();
+            if (!lo.tryLock())
+                return null;
+            if (stats != null)
+                stats.acquired();
+            recordOwner(lock);
+            return new CompositeLock(new ReentrantReadWriteLock[] { lock }, lockType, this);
+        }
+        return new CompositeLock(NO_LOCKS, lockType, this);
+    }
+    
+    
+    
+    /**
+     * Returns a composite exclusive (write) lock in which locks for all 
+     * given objects are acquired, waiting at most given time
+     * 
+     * @return the lock, or <tt>null</tt> if it wasn't acquired in time
+     */
+    public Lock tryLockAndGet(long time, TimeUnit unit, Object... objects) 
+                                                        throws InterruptedException {
+        return tryLockAndGet(LockType.WRITE, time, unit, objects);
+    }
+    
+    
+    
+    /**
+     * Returns a composite lock in which locks for all given objects 
+     * are acquired, waiting at most given time. Zero or negative time 
+     * means no waiting at all. If waiting is given up, no locks remain
+     * acquired and the waiter is removed from the queue
+     * 
+     * @return the lock, or <tt>null</tt> if it wasn't acquired in time
+     */
+    public Lock tryLockAndGet(LockType lockType, long time, TimeUnit unit, 
+                              Object... objects) throws InterruptedException {
+        return acquire(lockType, objects, true, unit.toNanos(time));
+    }
+    
+    
+    
+    /**
+     * Executes an action holding exclusive (write) lock for given 
+     * object, returning its result
+     * @see #withLock(LockType, Object, Supplier)
+     */
+    public <T> T withLock(Object o, Supplier<T> action) throws InterruptedException {
+        return withLock(LockType.WRITE, o, action);
+    }
+    
+    
+    
+    /**
+     * Executes an action holding a lock for given object, returning 
+     * its result. The lock is released when the action completes 
+     * (also abruptly). Unlike <tt>lockAndGet</tt>, no lock object 
+     * is created
+     */
+    public <T> T withLock(LockType lockType, Object o, Supplier<T> action) 
+                                                        throws InterruptedException {
+        if (o == null)
+            return action.get();
+        ReentrantReadWriteLock lock = lockStripe(stripeForObject(o), lockType);
+        try {
+            return action.get();
+        } finally {
+            release(lock, lockType);
+            makeRound();
+        }
+    }
+    
+    
+    
+    /**
+     * Executes an action holding exclusive (write) lock for all given 
+     * objects
+     * @see #runLocked(LockType, Runnable, Object...)
+     */
+    public void runLocked(Runnable action, Object... objects) throws InterruptedException {
+        runLocked(LockType.WRITE, action, objects);
+    }
+    
+    
+    
+    /**
+     * Executes an action holding locks for all given objects. Locks 
+     * are released when the action completes (also abruptly). Unlike 
+     * <tt>lockAndGet</tt>, no lock object is created
+     */
+    public void runLocked(LockType lockType, Runnable action, Object... objects) 
+                                                        throws InterruptedException {
+        ReentrantReadWriteLock[] locks = lockAll(lockType, objects, false, 0);
+        try {
+            action.run();
+        } finally {
+            release(locks, lockType);
+        }
+    }
+    
+    
+    
+    /**
+     * Starts recording owners of stripes for deadlock and starvation 
+     * diagnostics, if not started yet. Only locks acquired after this
+     * are seen as owned. Stripes are identified by their 
+     * <tt>ReentrantReadWriteLock</tt>s
+     * 
+     * @return diagnostics of this lock keeper
+     */
+    public synchronized LockDiagnostics enableDiagnostics() {
+        if (diagnostics == null)
+            diagnostics = new LockDiagnostics(waits::values);
+        return diagnostics;
+    }
+    
+    
+    
+    /**
+     * @return diagnostics of this lock keeper, or <tt>null</tt>
+     *         if it was not enabled by {@link #enableDiagnostics()}
+     */
+    public LockDiagnostics getDiagnostics() {
+        return diagnostics;
+    }
+    
+    
+    
+    /**
+     * Starts collecting contention statistics, if not started yet
+     * @return statistics of this lock keeper
+     */
+    public synchronized LockStats enableStats() {
+        if (stats == null)
+            // stripe locks are separate objects, so their counters
+            // shouldn't share cache lines either
+            stats = new LockStats(stripes.length, true);
+        return stats;
+    }
+    
+    
+    
+    /**
+     * @return statistics of this lock keeper, or <tt>null</tt>
+     *         if it was not enabled by {@link #enableStats()}
+     */
+    public LockStats getStats() {
+        return stats;
+    }
+    
+    
+    
+    // private stuff //
+    
+    private CompositeLock lockSingle(int stripe, LockType lockType) {
+        return new CompositeLock(new ReentrantReadWriteLock[] { lockStripe(stripe, lockType) }, 
+                lockType, this);
+    }
+    
+    
+    private ReentrantReadWriteLock lockStripe(int stripe, LockType lockType) {
+        ReentrantReadWriteLock lock = stripes[stripe];
+        Lock lo = lockType == LockType.READ ? lock.readLock() : lock.writeLock();
+        final LockStats st = stats;
+        final boolean diag = diagnostics != null;
+        if (st == null && !diag)
+            lo.lock();
+        else if (lo.tryLock()) {
+            if (st != null)
+                st.acquired();
+        } else {
+            if (st != null) {
+                st.conflict(stripe);
+                st.waiterEntered();
+            }
+            long t = System.nanoTime();
+            Thread th = Thread.currentThread();
+            if (diag)
+                waits.put(th, new LockDiagnostics.Wait(th, lock, t));
+            try {
+                lo.lock();
+            } finally {
+                if (st != null)
+                    st.waiterLeft();
+                if (diag)
+                    waits.remove(th);
+            }
+            if (st != null)
+                st.acquiredAfterWait(System.nanoTime() - t);
+        }
+        recordOwner(lock);
+        return lock;
+    }
+    
+    
+    private CompositeLock acquire(LockType lockType, Object[] objects, 
+                                  boolean timed, long nanos) throws InterruptedException {
+        ReentrantReadWriteLock[] locks = lockAll(lockType, objects, timed, nanos);
+        return locks == null ? null : new CompositeLock(locks, lockType, this);
+    }
+    
+    
+    /**
+     * Acquires locks for all given objects
+     * @return acquired stripes, or <tt>null</tt> if timed out
+     */
+    private ReentrantReadWriteLock[] lockAll(LockType lockType, Object[] objects, 
+                                  boolean timed, long nanos) throws InterruptedException {
+        int n = 0;
+        for (Object o : objects) {
+            if (o != null)
+                n++;
+        }
+        if (n == 0)
+            return NO_LOCKS;
         
+        ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[n];
+        n = 0;
         for (Object o : objects) {
-            if (o != null) {
-                locks.add(forObject(o));
+            if (o != null)
+                locks[n++] = stripes[stripeForObject(o)];
+        }
+        final LockStats st = stats;
+        if (tryAllLocks(locks, lockType) > 0) {
+            if (st != null)
+                st.acquired();
+            recordOwner(locks);
+            return locks;
+        }
+        if (st != null) {
+            for (Object o : objects) {
+                int s;
+                if (o != null && !isAvailable(stripes[s = stripeForObject(o)], lockType))
+                    st.conflict(s);
             }
         }
-        Waiter w = null;
-        queueLock.lock();
+        if (timed && nanos <= 0)
+            return null;
+        Waiter w = new Waiter(Thread.currentThread(), locks, lockType);
+        if (st == null)
+            return await(w, locks, lockType, timed, nanos) ? locks : null;
+        st.waiterEntered();
+        long t = System.nanoTime();
+        boolean acquired;
         try {
-            int r = tryAllLocks(locks, lockType);
-            if (r > 0) 
-                return new CompositeLock(locks, lockType, this);
-            else {
-                w = new Waiter();
-                waiters.add(w);
-            }
+            acquired = await(w, locks, lockType, timed, nanos);
         } finally {
-            queueLock.unlock();
+            st.waiterLeft();
         }
-        for (;;) {
-            w.semIn.acquire();
-            int r = tryAllLocks(locks, lockType);
-            if (r > 0) {
-                w.acquired = true;
-                w.semOut.release();
-                return new CompositeLock(locks, lockType, this);
-            } else 
-                w.semOut.release();
+        if (!acquired)
+            return null;
+        st.acquiredAfterWait(System.nanoTime() - t);
+        return locks;
+    }
+    
+    
+    /**
+     * Enqueues a waiter and parks until locks are acquired. Locks 
+     * are tried after enqueueing, so a release which happens 
+     * meanwhile can't be missed. A signalled waiter which fails 
+     * to acquire its locks runs a round before parking again, 
+     * as other waiters could be skipped in its favour
+     * @return false if timed out
+     */
+    private boolean await(Waiter w, ReentrantReadWriteLock[] locks, LockType lockType,
+                                boolean timed, long nanos) throws InterruptedException {
+        final long since = System.nanoTime();
+        final long deadline = timed ? since + nanos : 0;
+        waiters.add(w);
+        try {
+            for (;;) {
+                boolean signalled = w.state.getAndSet(Waiter.WAITING) == Waiter.SIGNALLED;
+                if (tryAllLocks(locks, lockType) > 0) {
+                    w.state.set(Waiter.DONE);
+                    waiters.remove(w);
+                    recordOwner(locks);
+                    return true;
+                }
+                if (signalled)
+                    makeRound();
+                if (diagnostics != null)
+                    waits.put(w.th, new LockDiagnostics.Wait(w.th, 
+                            blockingLock(locks, lockType), since));
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                if (timed) {
+                    long rem = deadline - System.nanoTime();
+                    if (rem <= 0)
+                        return false;
+                    LockSupport.parkNanos(this, rem);
+                } else
+                    LockSupport.park(this);
+            }
+        } finally {
+            if (w.state.get() != Waiter.DONE)
+                giveUp(w);
+            if (diagnostics != null)
+                waits.remove(w.th);
         }
     }
     
     
+    private void recordOwner(ReadWriteLock lock) {
+        LockDiagnostics d = diagnostics;
+        if (d != null)
+            d.acquired(lock, Thread.currentThread());
+    }
     
-    // private stuff //
     
-    private ReentrantReadWriteLock forObject(Object o) {
-        ReentrantReadWriteLock[] ls = null;
-        if (classed) {
-            ls = lockStorage.get(o.getClass());
+    private void recordOwner(ReadWriteLock[] locks) {
+        LockDiagnostics d = diagnostics;
+        if (d != null) {
+            for (ReadWriteLock lock : locks)
+                d.acquired(lock, Thread.currentThread());
         }
-        if (ls == null) {
-            ls = objectLockStorage;
+    }
+    
+    
+    private void release(ReadWriteLock lock, LockType type) {
+        lockOf(lock, type).unlock();
+        LockDiagnostics d = diagnostics;
+        if (d != null)
+            d.released(lock, Thread.currentThread());
+    }
+    
+    
+    /**
+     * Releases given stripes and lets waiters try them
+     */
+    private void release(ReadWriteLock[] locks, LockType type) {
+        for (ReadWriteLock lock : locks)
+            release(lock, type);
+        makeRound();
+    }
+    
+    
+    /**
+     * Withdraws a waiter which didn't acquire its locks. A round 
+     * could skip other waiters in favour of this one, so they 
+     * are given another chance
+     */
+    private void giveUp(Waiter w) {
+        waiters.remove(w);
+        makeRound();
+    }
+    
+    
+    private int stripeForObject(Object o) {
+        return stripe(o.getClass(), o.hashCode());
+    }
+    
+    
+    private int stripeForKey(long key) {
+        return stripe(Long.class, Long.hashCode(key));
+    }
+    
+    
+    private int stripe(Class<?> cl, int hash) {
+        int shift = classed ? shifts.get(cl) : 0;
+        return shift + (spreader.applyAsInt(hash) & mask);
+    }
+    
+    
+    private static ReentrantReadWriteLock blockingLock(ReentrantReadWriteLock[] locks, 
+                                                      LockType type) {
+        for (ReentrantReadWriteLock lock : locks) {
+            if (!isAvailable(lock, type))
+                return lock;
         }
-        return ls[o.hashCode() & mask];
+        return locks[0];    // was held shortly
+    }
+    
+    
+    private static boolean isAvailable(ReentrantReadWriteLock lock, LockType type) {
+        return !lock.isWriteLocked() 
+                && (type == LockType.READ || lock.getReadLockCount() == 0);
     }
     
     
@@ -195,27 +589,22 @@ public final class LockKeeper {
      *              but failed to acquire
      *       (-x) - number of locks unable to acquire
      */
-    private int tryAllLocks(List<ReentrantReadWriteLock> locks, LockType type) {
+    private int tryAllLocks(ReentrantReadWriteLock[] locks, LockType type) {
         int x = 0;
         for (ReentrantReadWriteLock lock : locks) {
-            if ((type == LockType.READ && lock.isWriteLocked()) 
-                    || (type == LockType.WRITE 
-                          && (lock.isWriteLocked() || lock.getReadLockCount() > 0))) {
+            if (!isAvailable(lock, type)) {
                 x--;
             }
         }
         if (x < 0) 
             return x;
 
-        List<Lock> result = new ArrayList<>();
-        for (ReentrantReadWriteLock lock : locks) {
-            Lock lo = type == LockType.READ ? lock.readLock() : lock.writeLock();
-            if (lo.tryLock()) {
-                result.add(lo);
-            } else {
-                for (Lock lc : result) {
-                    lc.unlock();
-                }
+        for (int i = 0; i < locks.length; i++) {
+            if (!lockOf(locks[i], type).tryLock()) {
+                while (--i >= 0)
+                    lockOf(locks[i], type).unlock();
+                // waiters could fail on locks held here meanwhile
+                makeRound();
                 return 0;
             }
         }
@@ -223,28 +612,44 @@ public final class LockKeeper {
     }
     
 
+    private static Lock lockOf(ReadWriteLock lock, LockType type) {
+        return type == LockType.READ ? lock.readLock() : lock.writeLock();
+    }
     
-    private List<Waiter> newWaiters = new ArrayList<>();
     
+    /**
+     * Unparks waiting threads which will succeed to acquire their locks 
+     * if they try now. Waiters are evaluated in arrival order: locks of 
+     * an eligible waiter are claimed for it, so later waiters needing 
+     * them are not woken in vain (they will be evaluated again when 
+     * the claiming waiter releases or gives up its locks)
+     */
     private void makeRound() {
-        queueLock.lock();
-        Waiter w = null;
-        while ((w = waiters.poll()) != null) {
-            if (!w.acquired) {
-                w.semIn.release();
-                try {
-                    w.semOut.acquire();
-                } catch (InterruptedException e) {
-                    w.acquired = true;
-                }
-                if (!w.acquired) {
-                    newWaiters.add(w);
-                }
-            }
+        Map<ReadWriteLock, LockType> claimed = null;
+        for (Waiter w : waiters) {
+            int s = w.state.get();
+            if (s == Waiter.DONE || !isEligible(w, claimed))
+                continue;
+            if (claimed == null)
+                claimed = new IdentityHashMap<>();
+            for (ReentrantReadWriteLock lock : w.locks)
+                claimed.merge(lock, w.type, (t1, t2) -> t1 == LockType.WRITE ? t1 : t2);
+            if (s == Waiter.WAITING && w.state.compareAndSet(Waiter.WAITING, Waiter.SIGNALLED))
+                LockSupport.unpark(w.th);
+        }
+    }
+    
+    
+    private static boolean isEligible(Waiter w, Map<ReadWriteLock, LockType> claimed) {
+        for (ReentrantReadWriteLock lock : w.locks) {
+            if (!isAvailable(lock, w.type))
+                return false;
+            LockType c;
+            if (claimed != null && (c = claimed.get(lock)) != null 
+                    && (c == LockType.WRITE || w.type == LockType.WRITE))
+                return false;
         }
-        waiters.addAll(newWaiters);
-        newWaiters.clear();
-        queueLock.unlock();
+        return true;
     }
     
     
@@ -253,12 +658,21 @@ public final class LockKeeper {
     
     
     static class Waiter {
+        
+        static final int WAITING   = 0;
+        static final int SIGNALLED = 1;    // unparked, retrying its locks
+        static final int DONE      = 2;    // acquired its locks
 
-        final Semaphore semIn = new Semaphore(0);
-        final Semaphore semOut = new Semaphore(0);
-        volatile boolean acquired = false;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        final Thread th;
+        final ReentrantReadWriteLock[] locks;
+        final LockType type;
         
-        Waiter() { }
+        Waiter(Thread th, ReentrantReadWriteLock[] locks, LockType type) { 
+            this.th = th;
+            this.locks = locks;
+            this.type = type;
+        }
     }
     
     
@@ -267,21 +681,54 @@ public final class LockKeeper {
     
     
     /**
-     * Composite lock class. Can be obtained by <tt>LockKeeper#lockAndGet</tt>
+     * Composite lock class. Can be obtained by <tt>LockKeeper#lockAndGet</tt>.
+     * <p>
+     * A write lock can be downgraded to read lock, but not vice versa 
+     * (unlike {@link LockKeeperV2.CompositeLock#tryUpgrade()}): 
+     * <tt>ReentrantReadWriteLock</tt> doesn't give write lock to 
+     * a thread holding read lock, so read locks would have to be 
+     * released first, letting other writers in between
      */
     public static class CompositeLock implements Lock {
 
         private static final String UNSUPPORTED_EXCEPTION_MSG 
                 = "This lock is in locked state when obtained by LockKeeper#lockAndGet method";
         
-        private final List<Lock> locks = new ArrayList<>();
+        private final ReentrantReadWriteLock[] stripes;
         private final LockKeeper keeper;
+        private LockType type;
         
-        CompositeLock(List<? extends ReadWriteLock> locks, LockType type, LockKeeper lockKeeper) {
-            for (ReadWriteLock lock : locks) {
-                this.locks.add(type == LockType.READ ? lock.readLock() : lock.writeLock());
-            }
+        CompositeLock(ReentrantReadWriteLock[] locks, LockType type, LockKeeper lockKeeper) {
+            this.stripes = locks;
             this.keeper = lockKeeper;
+            this.type = type;
+        }
+        
+        
+        /**
+         * Converts this exclusive (write) lock to shared (read) lock 
+         * for all its objects. Never blocks; no other writer can get 
+         * in between, as read locks are taken before write locks 
+         * are released
+         * 
+         * @throws IllegalStateException if this is not a write lock
+         * @throws IllegalMonitorStateException if current thread 
+         *         doesn't hold this lock
+         */
+        public void downgrade() {
+            if (type != LockType.WRITE)
+                throw new IllegalStateException("Not a write lock");
+            for (ReentrantReadWriteLock lock : stripes) {
+                if (!lock.isWriteLockedByCurrentThread())
+                    throw new IllegalMonitorStateException(
+                            "Lock is not held by current thread");
+            }
+            for (ReadWriteLock lock : stripes)
+                lock.readLock().lock();
+            for (ReadWriteLock lock : stripes)
+                lock.writeLock().unlock();
+            type = LockType.READ;
+            keeper.makeRound();
         }
         
 
@@ -307,10 +754,7 @@ public final class LockKeeper {
 
         @Override
         public void unlock() {
-            for (Lock lock : locks) {
-                lock.unlock();
-            }
-            keeper.makeRound();
+            keeper.release(stripes, type);
         }
 
         @Override
@@ -4,34 +4,48 @@ import static java.lang.Thread.currentThread;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicIntegerArray;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 
 
 /**
  * Version 2 of {@link LockKeeper}, adopted to highly concurrent 
  * environment.
  * <p>
- * <b>Not implemented yet:</b>
- * <ul>
- * <li>read locks
- * <li>reentrancy
- * </ul>
+ * Both exclusive (write) and shared (read) locks are supported:
+ * any number of readers may hold the same stripe at once, while 
+ * a writer holds it alone.
  * <p>
- * After implementation of these features, will replace current
- * version of {@link LockKeeper}.
+ * Locks are reentrant: a thread holding a lock may acquire it 
+ * again for objects sharing the same stripes (e. g. in nested 
+ * calls), in which case only the stripes not held yet are 
+ * actually acquired. A write lock may be re-acquired as a read 
+ * lock, but not vice versa. Locks must be released by the same 
+ * thread that acquired them.
+ * <p>
+ * Will replace current version of {@link LockKeeper}.
  * 
  * @author Salauyou
  */
@@ -43,14 +57,58 @@ public class LockKeeperV2 {
      * 2) allow concurrent acquision for non-overlapping stripes
      * 3) switch from Lock[] to int[]
      * 
-     * TODO: make locks reentrant
-     * TODO: implement readlock
+     * Stripe word layout:
+     *   bit 30       - reserved by some thread (see `tryGetLocks`)
+     *   bit 29       - write locked
+     *   bits 0..15   - number of readers holding the stripe
+     * 
+     * Each stripe also has a 64-bit version in `versions`, which is 
+     * incremented when a write lock is released, before the write 
+     * bit is cleared (used to validate optimistic reads)
+     * 
+     * Reentrancy is tracked per thread in `Holds`, so stripe words
+     * don't need to carry owner: a thread holding a stripe simply 
+     * doesn't touch it again, but increments a local hold count.
+     * 
+     * Waiters are kept in per-stripe wait lists: each waiter sits
+     * in the list of a stripe it was found blocked on, so releasing
+     * a stripe only looks at waiters that can be interested in it
+     * (see `process`)
+     * 
+     * Acquisitions are counted in a current `Phase` from the start,
+     * so auto-resizing can be enabled while locks are held. In that 
+     * mode, `mask` is the maximal (physical) one, while objects are 
+     * mapped by a smaller mask of current phase. Changing the mask 
+     * goes through a transition phase, in which objects are mapped 
+     * to stripes by both old and new masks; new mask comes to force 
+     * alone when all locks acquired by old one are released 
+     * (see `Resizer`)
      */
     
     final int mask;
+    final int spacingLog;   // log₂ of distance between stripes in the array
+    final IntUnaryOperator spreader;
     final AtomicIntegerArray stripes;
-    final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    final AtomicLongArray versions;     // see `versionIndex`
+    final AtomicReferenceArray<Queue<Waiter>> waitLists;
     final Map<Class<?>, Integer> shiftsForClasses;   
+    final ClassValue<Integer> shifts = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> cl) {
+            // resolved once per class, honouring subclasses
+            Integer sh = null;
+            while (cl != null && (sh = shiftsForClasses.get(cl)) == null)
+                cl = cl.getSuperclass();
+            return sh == null ? 0 : sh;
+        }
+    };
+    final ThreadLocal<Holds> holds = ThreadLocal.withInitial(Holds::new);
+    final LongAdder spins = new LongAdder();
+    volatile Backoff backoff = Backoff.DEFAULT;
+    volatile LockStats stats;
+    volatile Phase phase;
+    volatile LockDiagnostics diagnostics;
+    Resizer resizer;
     
     
     /**
@@ -64,7 +122,44 @@ public class LockKeeperV2 {
      *        <tt>IllegalArgumentException</tt>
      */
     public LockKeeperV2(int segmentSizeLog, Class<?>... classes) {
+        this(segmentSizeLog, false, classes);
+    }
+    
+    
+    
+    /**
+     * Creates a new LockKeeper with specified number of stripes
+     * and layout
+     * @param segmentSizeLog log₂ of stripe number for each class
+     * @param padded if true, each stripe will occupy its own cache 
+     *        line (64 bytes instead of 4), so threads locking
+     *        unrelated stripes don't slow down each other by false 
+     *        sharing. Costs 16x memory for stripes
+     * @param classes classes for which separate segments should 
+     *        be created (see {@link #LockKeeperV2(int, Class...)})
+     */
+    public LockKeeperV2(int segmentSizeLog, boolean padded, Class<?>... classes) {
+        this(segmentSizeLog, padded, Spreaders.MURMUR3, classes);
+    }
+    
+    
+    
+    /**
+     * Creates a new LockKeeper with specified number of stripes, 
+     * layout and hash spreader
+     * @param segmentSizeLog log₂ of stripe number for each class
+     * @param padded if true, each stripe will occupy its own cache line
+     *        (see {@link #LockKeeperV2(int, boolean, Class...)})
+     * @param spreader function applied to hash codes of objects before
+     *        choosing a stripe (see {@link Spreaders})
+     * @param classes classes for which separate segments should 
+     *        be created (see {@link #LockKeeperV2(int, Class...)})
+     */
+    public LockKeeperV2(int segmentSizeLog, boolean padded, 
+                        IntUnaryOperator spreader, Class<?>... classes) {
         mask = (1 << segmentSizeLog) - 1;
+        spacingLog = padded ? PADDED_SPACING_LOG : 0;
+        this.spreader = Objects.requireNonNull(spreader);
         int size = mask + 1;
         if (classes.length > 0) {
             Map<Class<?>, Integer> shifts = new HashMap<>();
@@ -78,7 +173,10 @@ public class LockKeeperV2 {
         } else {
             shiftsForClasses = null;     
         }
-        stripes = new AtomicIntegerArray(size);
+        stripes = new AtomicIntegerArray(size << spacingLog);
+        versions = new AtomicLongArray(versionIndex(size << spacingLog));
+        waitLists = new AtomicReferenceArray<>(size);
+        phase = new Phase(mask, mask, false);
     }
     
     
@@ -96,13 +194,47 @@ public class LockKeeperV2 {
      * Returns exclusive (write) lock in a locked state for a given object
      */
     public Lock lockAndGet(Object o) throws InterruptedException {
-        return lockAndGet(LockType.WRITE, new Object[]{o});
+        return lockAndGet(LockType.WRITE, o);
     }
     
     
+    /**
+     * Returns a lock of given type in a locked state for a given object
+     */
     public Lock lockAndGet(LockType lockType, Object o) 
                                               throws InterruptedException {
-        return lockAndGet(lockType, new Object[]{o});
+        Phase p = enter();
+        return acquire(p, lockType, locksFor(p, o), false, 0);
+    }
+    
+    
+    /**
+     * Returns a lock of given type in a locked state for a given 
+     * primitive key, without boxing it. The key is locked 
+     * by the same stripe as its boxed <tt>Long</tt> value would be
+     */
+    public Lock lockAndGetByKey(LockType lockType, long key) 
+                                              throws InterruptedException {
+        Phase p = enter();
+        return acquire(p, lockType, locksForKey(p, key), false, 0);
+    }
+    
+    
+    /**
+     * Returns exclusive (write) lock in a locked state for both given objects
+     */
+    public Lock lockAndGet(Object o1, Object o2) throws InterruptedException {
+        return lockAndGet(LockType.WRITE, o1, o2);
+    }
+    
+    
+    /**
+     * Returns a lock of given type in a locked state for both given objects
+     */
+    public Lock lockAndGet(LockType lockType, Object o1, Object o2) 
+                                              throws InterruptedException {
+        Phase p = enter();
+        return acquire(p, lockType, locksFor(p, o1, o2), false, 0);
     }
     
     
@@ -114,200 +246,1671 @@ public class LockKeeperV2 {
     }    
     
    
+    /**
+     * Returns a lock of given type in a locked state for all given objects.
+     * Read locks for the same stripe can be held by many threads at once
+     */
     public Lock lockAndGet(LockType lockType, Object... objects) 
                                               throws InterruptedException {
-        int[] locks = collectLocks(objects);
-        Thread t = tryGetLocks(locks, false);
-        if (t != null) {
-            Waiter w = new Waiter(t, locks);
-            waiters.add(w);
-            tryUnlockWaiters();         // if locks are acquired here, 
-            LockSupport.park();         // this won't block 
-            while (!w.allAcquired) {
-                LockSupport.park();
-                if (Thread.interrupted())
-                    throw new InterruptedException();
-            }
-        }
-        return new CompositeLock(locks, LockType.WRITE);
+        Phase p = enter();
+        return acquire(p, lockType, locksFor(p, objects), false, 0);
     }
     
     
+    /**
+     * Returns exclusive (write) lock in a locked state for a given object
+     * if it is available immediately, otherwise null
+     */
+    public Lock tryLockAndGet(Object o) {
+        return tryLockAndGet(LockType.WRITE, o);
+    }
     
-    // ------------------ private stuff ---------------------- //
     
+    /**
+     * Returns a lock of given type in a locked state for a given object
+     * if it is available immediately, otherwise null
+     */
+    public Lock tryLockAndGet(LockType lockType, Object o) {
+        try {
+            Phase p = enter();
+            return acquire(p, lockType, locksFor(p, o), true, 0);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);    // never waits
+        }
+    }
     
     
-    int[] collectLocks(Object... os) {
-        Set<Integer> pos = new HashSet<>();
-        for (Object o : os) 
-            pos.add(stripeForObject(o));
-        int[] ps = new int[pos.size()];
-        int i = 0;
-        for (Integer p : pos)
-            ps[i++] = p;
-        Arrays.sort(ps);    // avoid deadlocking in `tryAllLocks`
-        return ps;
+    /**
+     * Returns exclusive (write) lock in a locked state for all given 
+     * objects, waiting for it at most given time. Zero or negative time
+     * means no waiting at all
+     * 
+     * @return the lock, or null if it wasn't acquired in time
+     */
+    public Lock tryLockAndGet(long time, TimeUnit unit, Object... objects) 
+                                              throws InterruptedException {
+        return tryLockAndGet(LockType.WRITE, time, unit, objects);
     }
     
     
+    /**
+     * Returns a lock of given type in a locked state for all given 
+     * objects, waiting for it at most given time. Zero or negative time 
+     * means no waiting at all. If waiting is given up, nothing remains 
+     * acquired or enqueued
+     * 
+     * @return the lock, or null if it wasn't acquired in time
+     */
+    public Lock tryLockAndGet(LockType lockType, long time, TimeUnit unit, 
+                              Object... objects) throws InterruptedException {
+        Phase p = enter();
+        return acquire(p, lockType, locksFor(p, objects), true, unit.toNanos(time));
+    }
     
-    int stripeForObject(Object o) {
-        if (o == null)
-            return 0;
-        Integer sh = null;
-        if (shiftsForClasses != null) {
-            Class<?> cl = o.getClass();
-            while (cl != Object.class && (sh = shiftsForClasses.get(cl)) == null)
-                cl = cl.getSuperclass();
+    
+    
+    /**
+     * Executes an action holding exclusive (write) lock for a given 
+     * object, returning its result
+     * @see #withLock(LockType, Object, Supplier)
+     */
+    public <T> T withLock(Object o, Supplier<T> action) throws InterruptedException {
+        return withLock(LockType.WRITE, o, action);
+    }
+    
+    
+    /**
+     * Executes an action holding a lock of given type for a given 
+     * object, returning its result. The lock is released when 
+     * the action completes (also abruptly). Unlike 
+     * <tt>lockAndGet</tt>, no lock object is created
+     */
+    public <T> T withLock(LockType lockType, Object o, Supplier<T> action) 
+                                              throws InterruptedException {
+        Phase p = enter();
+        int[] locks = locksFor(p, o);
+        lock(p, lockType, locks, false, 0);
+        try {
+            return action.get();
+        } finally {
+            unholdAll(locks);
+            p.exited.increment();
         }
-        if (sh == null)
-            sh = 0;
-        return sh + (o.hashCode() & mask);
-    } 
+    }
     
-
     
-    Thread tryGetLocks(final int[] locks, boolean precheck) {       
-        // acquisition of locks is performed in two stages:
-        
-        // 1) reservation stage, where each lock is "reserved",
-        //    then tested if it can be acquired. This is a place 
-        //    where lock-freeness is violated: before reservation, 
-        //    busy waiting is peformed if the lock is already reserved 
-        //    by another thread, so current thead can be "blocked" for
-        //    unknown amount of time (fortunately, this is a rare case). 
-        //    If it is found that some particular lock is unable 
-        //    to be acquired, all reserved locks gets unreserved 
-        //    and a current thread is returned;
-        // 2) acquisition stage, where locks are marked acquired
-        //    and reservation marks are cleared. 
-        
-        // pre-check
-        if (precheck) {
-            for (int lo : locks) {
-                if (isWriteLocked(stripes.get(lo)))
-                    return currentThread();
-            }
+    /**
+     * Executes an action holding exclusive (write) lock for all 
+     * given objects
+     * @see #runLocked(LockType, Runnable, Object...)
+     */
+    public void runLocked(Runnable action, Object... objects) throws InterruptedException {
+        runLocked(LockType.WRITE, action, objects);
+    }
+    
+    
+    /**
+     * Executes an action holding a lock of given type for all given 
+     * objects. The lock is released when the action completes 
+     * (also abruptly). Unlike <tt>lockAndGet</tt>, no lock object 
+     * is created
+     */
+    public void runLocked(LockType lockType, Runnable action, Object... objects) 
+                                              throws InterruptedException {
+        Phase p = enter();
+        int[] locks = locksFor(p, objects);
+        lock(p, lockType, locks, false, 0);
+        try {
+            action.run();
+        } finally {
+            unholdAll(locks);
+            p.exited.increment();
         }
-        
-        // reserved locks
-        final List<Integer> res = new ArrayList<>(locks.length);
-        for (int lo : locks) {         
-            for (;;) {
-                int v;
-                while ((isReserved(v = stripes.get(lo))));  
-                if (isWriteLocked(v)) {                     
-                    for (int lk : res)                      
-                        stripes.set(lk, setUnreserved(stripes.get(lk)));
-                    return currentThread();
-                }
-                if (stripes.compareAndSet(lo, v, setReserved(v))) { 
-                    res.add(lo);
-                    break;
-                }
-            }
+    }
+    
+    
+    
+    /**
+     * Returns a stamp for optimistic reading of a given object, 
+     * or null if it is write-locked
+     * @see #tryOptimisticRead(Object...)
+     */
+    public Stamp tryOptimisticRead(Object o) {
+        Phase p = phase;
+        return stamp(p, locksFor(p, o));
+    }
+    
+    
+    /**
+     * Returns a stamp for optimistic reading of all given objects, 
+     * or null if some of them is write-locked (also by current thread). 
+     * Nothing is acquired and no stripe is written, so optimistic 
+     * readers don't slow down each other. Data read under a stamp 
+     * may be inconsistent and can be trusted only after 
+     * {@link #validate(Stamp)} succeeds; otherwise the read should 
+     * be retried or done under a read lock
+     */
+    public Stamp tryOptimisticRead(Object... objects) {
+        Phase p = phase;
+        return stamp(p, locksFor(p, objects));
+    }
+    
+    
+    /**
+     * Tells if no write lock was acquired for objects of a given stamp
+     * since it was issued. Always false for null stamp
+     */
+    public boolean validate(Stamp stamp) {
+        if (stamp == null)
+            return false;
+        // a volatile write followed by volatile reads: data reads 
+        // made before can't be reordered with reading stripes
+        holds.get().fence = 0;
+        if (stamp.phase != phase)
+            return false;
+        int[] locks = stamp.locks;
+        for (int i = 0; i < locks.length; i++) {
+            // the write bit is read first, as it is cleared after 
+            // the version is incremented
+            if (isWriteLocked(stripes.get(locks[i])) 
+                    || versions.get(versionIndex(locks[i])) != stamp.versions[i])
+                return false;
         }
-        for (int lo : locks) 
-            stripes.set(lo, setWriteLocked(stripes.get(lo)));
-        return null;
+        return true;
     }
     
- 
-   
-    final AtomicLong opCounter = new AtomicLong();  // operation counter
     
     
-    void tryUnlockWaiters() {
-        opCounter.incrementAndGet();
-        for (;;) {
-            final List<Waiter> ws = new ArrayList<>();
-            final long c = opCounter.get();
-            Waiter w;
-            while ((w = waiters.poll()) != null) {
-                if (tryGetLocks(w.locks, true) == null) {
-                    w.allAcquired = true;
-                    LockSupport.unpark(w.th);
-                } else
-                    ws.add(w);
+    /**
+     * Sets back-off policy for waiting on stripes which are being 
+     * reserved by other threads (see {@link Backoff})
+     */
+    public void setBackoff(Backoff backoff) {
+        this.backoff = Objects.requireNonNull(backoff);
+    }
+    
+    
+    /**
+     * Returns total number of back-off steps made by threads 
+     * while waiting on reserved stripes. Growing fast, it signals 
+     * about high contention on some stripes
+     */
+    public long getSpinCount() {
+        return spins.sum();
+    }
+    
+    
+    
+    /**
+     * Returns a future which completes by exclusive (write) lock in 
+     * a locked state for all given objects, when it is acquired
+     * @see #lockAsync(LockType, Executor, Object...)
+     */
+    public CompletableFuture<Lock> lockAsync(Object... objects) {
+        return lockAsync(LockType.WRITE, null, objects);
+    }
+    
+    
+    /**
+     * Returns a future which completes by a lock of given type in 
+     * a locked state for all given objects, when it is acquired
+     * @see #lockAsync(LockType, Executor, Object...)
+     */
+    public CompletableFuture<Lock> lockAsync(LockType lockType, Object... objects) {
+        return lockAsync(lockType, null, objects);
+    }
+    
+    
+    /**
+     * Returns a future which completes by a lock of given type in 
+     * a locked state for all given objects, when it is acquired. 
+     * Never blocks: if locks are unavailable, they are acquired 
+     * by a thread that releases them, as it does for blocked waiters, 
+     * and the future is completed in that thread or in a given 
+     * executor.
+     * <p>
+     * The future may be cancelled, then locks won't be acquired, 
+     * or will be released if they are acquired meanwhile.
+     * <p>
+     * Unlike locks returned by <tt>lockAndGet()</tt>, locks obtained 
+     * asynchronously are not owned by any thread (so may be released 
+     * by any thread) and are not reentrant: waiting for such a lock 
+     * in a thread which already holds some of its stripes is a deadlock
+     * 
+     * @param executor executor to complete the future in, or null 
+     *        to complete it in a thread that acquired the lock
+     */
+    public CompletableFuture<Lock> lockAsync(LockType lockType, Executor executor, 
+                                             Object... objects) {
+        Phase p = enter();
+        CompletableFuture<Lock> f = new CompletableFuture<>();
+        Waiter w = tryLockAsync(p, lockType, executor, locksFor(p, objects), f, false);
+        if (w != null)
+            enqueue(w);
+        return f;
+    }
+    
+    
+    /**
+     * Acquires locks of given type for many independent object sets 
+     * at once, like {@link #lockAsync(LockType, Executor, Object...)}
+     * does for each of them
+     * @see #lockAll(LockType, Executor, List)
+     */
+    public List<CompletableFuture<Lock>> lockAll(LockType lockType, List<Object[]> objectSets) {
+        return lockAll(lockType, null, objectSets);
+    }
+    
+    
+    /**
+     * Acquires locks of given type for many independent object sets 
+     * at once, like {@link #lockAsync(LockType, Executor, Object...)}
+     * does for each of them. Never blocks.
+     * <p>
+     * Sets are processed in two passes: first, all sets whose stripes 
+     * are available are granted (their futures are complete when 
+     * this method returns), then the rest are enqueued as waiters, 
+     * in order of the list. So sets conflicting with each other 
+     * within a batch don't delay the non-conflicting ones
+     * 
+     * @return futures of locks for each set, in order of the list
+     */
+    public List<CompletableFuture<Lock>> lockAll(LockType lockType, Executor executor, 
+                                                 List<Object[]> objectSets) {
+        int n = objectSets.size();
+        List<CompletableFuture<Lock>> res = new ArrayList<>(n);
+        if (n == 0)
+            return res;
+        Phase p = enter();
+        if (n > 1)
+            p.entered.add(n - 1);       // the phase is held by the first entry
+        List<Waiter> deferred = null;
+        for (Object[] os : objectSets) {
+            CompletableFuture<Lock> f = new CompletableFuture<>();
+            res.add(f);
+            Waiter w = tryLockAsync(p, lockType, executor, locksFor(p, os), f, true);
+            if (w != null) {
+                if (deferred == null)
+                    deferred = new ArrayList<>();
+                deferred.add(w);
             }
-            waiters.addAll(ws);
-            
-            // return only if no unlocks occurred
-            // during queue traversal
-            if (opCounter.get() == c) 
-                return;
         }
+        if (deferred != null) {
+            for (Waiter w : deferred)
+                enqueue(w);
+        }
+        return res;
     }
-       
     
-    public static enum LockType { READ, WRITE }
     
-
-    static final int RESERVED_BIT     = 1 << 30;
-    static final int WRITE_LOCKED_BIT = 1 << 29;
     
+    /**
+     * Starts auto-resizing: the number of stripes used for each segment 
+     * is periodically adjusted between 2<sup>minSegmentSizeLog</sup> 
+     * and 2<sup>segmentSizeLog</sup> given to constructor, depending 
+     * on measured rate of false conflicts, i. e. of acquisitions which 
+     * found a stripe held for another object. The rate above 
+     * {@value #RESIZE_GROW_RATE} doubles the number, below 
+     * {@value #RESIZE_SHRINK_RATE} halves it.
+     * <p>
+     * Resizing never blocks acquisitions: while it is in progress, 
+     * objects are locked by stripes of both old and new size, 
+     * until locks acquired before are released. The first resizing
+     * also waits until locks acquired before this call are released.
+     * Memory is allocated for the maximal size up front, so shrinking 
+     * reduces the number of cache lines touched, not the footprint.
+     * <p>
+     * Each acquisition in this mode tags its stripes and, for a single 
+     * object, makes an extra allocation
+     * 
+     * @param minSegmentSizeLog minimal log₂ of stripe number for each class
+     * @param scheduler executor to run resizing steps in
+     * @param period period of resizing steps
+     * @return future of the periodic task, which may be cancelled 
+     *         to stop resizing at current size
+     * @throws IllegalStateException if auto-resizing is already enabled
+     */
+    public synchronized ScheduledFuture<?> enableAutoResize(int minSegmentSizeLog,
+                                                            ScheduledExecutorService scheduler,
+                                                            long period, TimeUnit unit) {
+        if (resizer != null)
+            throw new IllegalStateException("Auto-resizing is already enabled");
+        if (minSegmentSizeLog < 0 || (1 << minSegmentSizeLog) - 1 > mask)
+            throw new IllegalArgumentException("Minimal segment size log must be "
+                    + "between 0 and the one given to constructor");
+        resizer = new Resizer((1 << minSegmentSizeLog) - 1);
+        resizer.switchTo(new Phase(mask, mask, true));
+        return scheduler.scheduleWithFixedDelay(resizer, period, period, unit);
+    }
     
-    static boolean isReserved(int lock) {
-        return (RESERVED_BIT & lock) > 0;
+    
+    /**
+     * Returns current log₂ of stripe number for each class. It is 
+     * the one given to constructor, unless auto-resizing is enabled
+     */
+    public int getSegmentSizeLog() {
+        return Integer.bitCount(phase.mask);
     }
     
-    static int setReserved(int lock) {
-        return RESERVED_BIT | lock;
+    
+    
+    /**
+     * Starts recording owners of stripes for deadlock and starvation 
+     * diagnostics, if not started yet. Only locks acquired after this
+     * are seen as owned
+     * 
+     * @return diagnostics of this lock keeper
+     */
+    public synchronized LockDiagnostics enableDiagnostics() {
+        if (diagnostics == null)
+            diagnostics = new LockDiagnostics(this::waits);
+        return diagnostics;
     }
     
-    static int setUnreserved(int lock) {
-        return ~RESERVED_BIT & lock;
+    
+    /**
+     * @return diagnostics of this lock keeper, or null
+     *         if it was not enabled by {@link #enableDiagnostics()}
+     */
+    public LockDiagnostics getDiagnostics() {
+        return diagnostics;
     }
     
-    static boolean isWriteLocked(int lock) {
-        return (WRITE_LOCKED_BIT & lock) > 0;
+    
+    
+    /**
+     * Starts collecting contention statistics, if not started yet.
+     * Stripes in statistics are numbered from 0 to 
+     * (|classes| + 1) * 2<sup>segmentSizeLog</sup> - 1. In padded 
+     * layout, their conflict counters are padded as well
+     * 
+     * @return statistics of this lock keeper
+     */
+    public synchronized LockStats enableStats() {
+        if (stats == null)
+            stats = new LockStats(waitLists.length(), spacingLog > 0);
+        return stats;
     }
     
-    static int setWriteLocked(int lock) {
-        return WRITE_LOCKED_BIT | setUnreserved(lock);
+    
+    /**
+     * @return statistics of this lock keeper, or null
+     *         if it was not enabled by {@link #enableStats()}
+     */
+    public LockStats getStats() {
+        return stats;
     }
     
-    static int setWriteUnlocked(int lock) {
-        return ~WRITE_LOCKED_BIT & setUnreserved(lock);
+    
+    
+    // ------------------ private stuff ---------------------- //
+    
+    
+    
+    CompositeLock acquire(Phase p, LockType type, int[] locks, boolean timed, long nanos) 
+                                              throws InterruptedException {
+        if (!lock(p, type, locks, timed, nanos))
+            return null;
+        CompositeLock lock = new CompositeLock(locks, type);
+        lock.phase = p;
+        return lock;
     }
     
     
     
-    public static class Waiter {
-        
-        volatile boolean allAcquired = false;
-        final Thread th;
-        final int[] locks;
-        
-        Waiter(final Thread th, final int[] locks) {
-            this.th = th;
-            this.locks = locks;
+    /**
+     * Acquires locks in given phase. If they are not acquired 
+     * (or exception is thrown), exits the phase
+     * @return false if timed out
+     */
+    boolean lock(Phase p, LockType type, int[] locks, boolean timed, long nanos) 
+                                              throws InterruptedException {
+        boolean acquired = false;
+        try {
+            return acquired = lock(type, locks, timed, nanos, p.tagged ? resizer : null);
+        } finally {
+            if (!acquired)
+                p.exited.increment();
+        }
+    }
+    
+    
+    
+    boolean lock(LockType type, int[] locks, boolean timed, long nanos, 
+                 Resizer rs) throws InterruptedException {
+        Holds h = holds.get();
+        int[] fresh = h.notHeld(locks, type);
+        final LockStats st = stats;
+        int lo;
+        if (fresh.length > 0 && (lo = tryGetLocks(fresh, type, false)) >= 0) {
+            if (st != null)
+                st.conflict(lo >> spacingLog);
+            if (rs != null)
+                rs.conflict(lo, locks, h);
+            if (timed && nanos <= 0)
+                return false;
+            Waiter w = new Waiter(currentThread(), fresh, type);
+            if (diagnostics != null)
+                w.since = System.nanoTime();
+            if (st == null) {
+                if (!await(w, timed, nanos))
+                    return false;
+            } else {
+                st.waiterEntered();
+                long t = System.nanoTime();
+                boolean acquired;
+                try {
+                    acquired = await(w, timed, nanos);
+                } finally {
+                    st.waiterLeft();
+                }
+                if (!acquired)
+                    return false;
+                st.acquiredAfterWait(System.nanoTime() - t);
+            }
+        } else if (st != null)
+            st.acquired();
+        if (rs != null)
+            rs.acquired(locks, h);
+        h.hold(locks, type);
+        final LockDiagnostics d = diagnostics;
+        if (d != null) {
+            for (int f : fresh)
+                d.acquired(f >> spacingLog, currentThread());
         }
+        return true;
     }
     
     
     
+    /**
+     * Releases given stripes held by current thread, except ones 
+     * still held by outer (reentered) locks
+     * @throws IllegalMonitorStateException if some of them isn't held
+     */
+    void unholdAll(int[] locks) {
+        Holds h = holds.get();
+        final LockDiagnostics d = diagnostics;
+        for (int lo : locks) {
+            LockType t = h.unhold(lo);
+            if (t != null) {
+                release(lo, t);
+                if (d != null)
+                    d.released(lo >> spacingLog, currentThread());
+            }
+        }
+        // waiters are signalled after all stripes are released,
+        // so they have better chance to acquire all at once
+        for (int lo : locks) {
+            if (h.indexOf(lo) < 0)
+                signalWaiters(lo);
+        }
+    }
+    
+    
     
     /**
-     * Composite lock class. Can be obtained by <tt>LockKeeper#lockAndGet</tt>
+     * Enqueues a waiter and parks until its locks are acquired
+     * @return false if timed out
      */
-    public class CompositeLock implements Lock {
-
-        private static final String UNSUPPORTED_MSG 
-                = "This lock is in locked state when obtained by lockAndGet()";
-        
-        final int[] keptLocks;
-        
-        CompositeLock(int[] locks, LockType type) {
-            keptLocks = locks;
+    boolean await(Waiter w, boolean timed, long nanos) throws InterruptedException {
+        final long deadline = timed ? System.nanoTime() + nanos : 0;
+        process(w);                 // enqueue, or acquire if locks are free already
+        while (w.state != Waiter.ACQUIRED) {
+            if (Thread.interrupted()) {
+                if (cancel(w))
+                    throw new InterruptedException();
+                currentThread().interrupt();    // acquired anyway
+                return true;
+            }
+            if (timed) {
+                long rem = deadline - System.nanoTime();
+                if (rem <= 0)
+                    return !cancel(w);
+                LockSupport.parkNanos(this, rem);
+            } else
+                LockSupport.park(this);
         }
-        
-        @Override
-        public void unlock() {
+        return true;
+    }
+    
+    
+    
+    /**
+     * Withdraws a waiter. Returns false if it can't be done
+     * because its locks are already acquired
+     */
+    boolean cancel(Waiter w) {
+        for (;;) {
+            int s = w.state;
+            if (s == Waiter.ACQUIRED)
+                return false;
+            if (s == Waiter.WAITING && w.casState(s, Waiter.CANCELLED)) {
+                waitList(w.blockedOn).remove(w);
+                return true;
+            }
+            Thread.yield();     // someone is acquiring locks for it
+        }
+    }
+    
+    
+    
+    /**
+     * Returns distinct stripes for given objects, sorted
+     * (to avoid deadlocking in `tryGetLocks`)
+     */
+    int[] collectLocks(Object o1, Object o2) {
+        int s1 = stripeForObject(o1);
+        int s2 = stripeForObject(o2);
+        if (s1 == s2)
+            return new int[] { s1 };
+        return s1 < s2 ? new int[] { s1, s2 } : new int[] { s2, s1 };
+    }
+    
+    
+    
+    /**
+     * Returns distinct stripes for given objects, sorted.
+     * Stripes are collected in a thread-local buffer, so 
+     * the only allocation is the resulting array
+     */
+    int[] collectLocks(Object[] os) {
+        int[] buf = holds.get().buffer(os.length);
+        int n = 0;
+        if (os.length <= INSERTION_SORT_THRESHOLD) {
+            for (Object o : os) {
+                int s = stripeForObject(o);
+                int i = n;
+                while (i > 0 && buf[i - 1] > s)
+                    i--;
+                if (i > 0 && buf[i - 1] == s)
+                    continue;
+                System.arraycopy(buf, i, buf, i + 1, n - i);
+                buf[i] = s;
+                n++;
+            }
+        } else {
+            for (Object o : os)
+                buf[n++] = stripeForObject(o);
+            Arrays.sort(buf, 0, n);
+            int d = 0;
+            for (int i = 0; i < n; i++) {
+                if (d == 0 || buf[d - 1] != buf[i])
+                    buf[d++] = buf[i];
+            }
+            n = d;
+        }
+        return Arrays.copyOf(buf, n);
+    }
+    
+    
+    
+    /**
+     * Takes versions of stripes, unless some of them is write-locked.
+     * A phase is not entered, but is checked on validation: writers 
+     * of any phase that may overlap with it lock stripes of this phase
+     */
+    Stamp stamp(Phase p, int[] locks) {
+        long[] vs = new long[locks.length];
+        for (int i = 0; i < locks.length; i++) {
+            if (isWriteLocked(stripes.get(locks[i])))
+                return null;
+            vs[i] = versions.get(versionIndex(locks[i]));
+        }
+        return new Stamp(locks, vs, p);
+    }
+    
+    
+    
+    /**
+     * Enters current phase. Entering is confirmed by re-reading the phase, so once resizer has 
+     * switched to the next phase and sees counters of the previous one, 
+     * nobody can enter it anymore
+     */
+    Phase enter() {
+        Phase p = phase;
+        for (;;) {
+            p.entered.increment();
+            Phase q = phase;
+            if (q == p)
+                return p;
+            p.exited.increment();
+            p = q;
+        }
+    }
+    
+    
+    
+    int[] locksFor(Phase p, Object o) {
+        return !p.tagged ? new int[] { stripeForObject(o) } 
+                         : collectLocks(p, new Object[] { o });
+    }
+    
+    
+    int[] locksFor(Phase p, Object o1, Object o2) {
+        return !p.tagged ? collectLocks(o1, o2) 
+                         : collectLocks(p, new Object[] { o1, o2 });
+    }
+    
+    
+    int[] locksFor(Phase p, Object[] os) {
+        return !p.tagged ? collectLocks(os) : collectLocks(p, os);
+    }
+    
+    
+    int[] locksForKey(Phase p, long key) {
+        if (!p.tagged)
+            return new int[] { stripeForKey(key) };
+        Holds h = holds.get();
+        long[] buf = h.packed(2);
+        int n = pack(buf, 0, p, shiftForClass(Long.class), Long.hashCode(key));
+        return unpack(buf, n, h);
+    }
+    
+    
+    
+    /**
+     * Returns distinct stripes for given objects in a given phase, 
+     * sorted. Each stripe is packed with a tag of an object (its 
+     * spread hash cut by maximal mask) to be sorted together; tags 
+     * are left in `Holds.tags`, aligned with resulting stripes
+     */
+    int[] collectLocks(Phase p, Object[] os) {
+        Holds h = holds.get();
+        long[] buf = h.packed(os.length * 2);
+        int n = 0;
+        for (Object o : os) {
+            if (o == null)
+                buf[n++] = 0;       // null is mapped to stripe 0, as in `stripeForObject`
+            else
+                n = pack(buf, n, p, shiftForClass(o.getClass()), o.hashCode());
+        }
+        return unpack(buf, n, h);
+    }
+    
+    
+    int pack(long[] buf, int n, Phase p, int shift, int hash) {
+        int sp = spreader.applyAsInt(hash);     // as in `stripe`
+        long tag = sp & mask;
+        buf[n++] = (long) ((shift + (sp & p.mask)) << spacingLog) << 32 | tag;
+        if (p.isTransition())
+            buf[n++] = (long) ((shift + (sp & p.oldMask)) << spacingLog) << 32 | tag;
+        return n;
+    }
+    
+    
+    static int[] unpack(long[] buf, int n, Holds h) {
+        Arrays.sort(buf, 0, n);
+        int[] tags = h.tags(n);
+        int d = 0;
+        for (int i = 0; i < n; i++) {
+            if (d == 0 || (int) (buf[d - 1] >>> 32) != (int) (buf[i] >>> 32))
+                buf[d++] = buf[i];
+        }
+        int[] locks = new int[d];
+        for (int i = 0; i < d; i++) {
+            locks[i] = (int) (buf[i] >>> 32);
+            tags[i] = (int) buf[i];
+        }
+        return locks;
+    }
+    
+    
+    
+    int stripeForObject(Object o) {
+        if (o == null)
+            return 0;
+        return stripe(shiftForClass(o.getClass()), o.hashCode());
+    } 
+    
+    
+    
+    int stripeForKey(long key) {
+        return stripe(shiftForClass(Long.class), Long.hashCode(key));
+    }
+    
+    
+    
+    int shiftForClass(Class<?> cl) {
+        return shiftsForClasses == null ? 0 : shifts.get(cl);
+    }
+    
+    
+    
+    int stripe(int shift, int hash) {
+        return (shift + (spreader.applyAsInt(hash) & mask)) << spacingLog;
+    }
+    
+
+    
+    /**
+     * @return -1 if locks are acquired, otherwise a stripe 
+     *         which is found unavailable
+     */
+    int tryGetLocks(final int[] locks, LockType type, boolean precheck) {       
+        // acquisition of locks is performed in two stages:
+        
+        // 1) reservation stage, where each lock is "reserved",
+        //    then tested if it can be acquired. This is a place 
+        //    where lock-freeness is violated: before reservation, 
+        //    waiting is peformed if the lock is already reserved 
+        //    by another thread, so current thead can be "blocked" for
+        //    unknown amount of time (fortunately, this is a rare case,
+        //    and `Backoff` prevents burning CPU when it happens). 
+        //    If it is found that some particular lock is unable 
+        //    to be acquired, all reserved locks gets unreserved 
+        //    and that lock is returned;
+        // 2) acquisition stage, where locks are marked acquired
+        //    (or reader count is incremented) and reservation marks 
+        //    are cleared. CAS is used here, as readers releasing 
+        //    their locks may change stripe words concurrently
+        
+        final boolean write = type == LockType.WRITE;
+        
+        // pre-check
+        if (precheck) {
+            for (int lo : locks) {
+                if (!isAvailable(stripes.get(lo), write))
+                    return lo;
+            }
+        }
+        
+        // reserve locks
+        for (int k = 0; k < locks.length; k++) {         
+            final int lo = locks[k];
+            for (;;) {
+                int v = stripes.get(lo);
+                if (isReserved(v))
+                    v = awaitUnreserved(lo);
+                if (!isAvailable(v, write)) {                     
+                    for (int j = 0; j < k; j++)                      
+                        unreserve(locks[j]);
+                    return lo;
+                }
+                if (stripes.compareAndSet(lo, v, setReserved(v)))
+                    break;
+            }
+        }
+        for (int lo : locks) {
+            int v;
+            do {
+                v = stripes.get(lo);
+            } while (!stripes.compareAndSet(lo, v, 
+                        write ? setWriteLocked(v) : addReader(v)));
+        }
+        return -1;
+    }
+    
+    
+    
+    int awaitUnreserved(int lo) {
+        final Backoff b = backoff;
+        int v, n = 0;
+        while (isReserved(v = stripes.get(lo)))
+            b.pause(++n);
+        spins.add(n);
+        return v;
+    }
+    
+    
+    
+    void unreserve(int lo) {
+        int v;
+        do {
+            v = stripes.get(lo);
+        } while (!stripes.compareAndSet(lo, v, setUnreserved(v)));
+    }
+    
+    
+    
+    /**
+     * @throws IllegalMonitorStateException if the stripe isn't 
+     *         locked with given type
+     */
+    void release(int lo, LockType type) {
+        int v = stripes.get(lo);
+        if (type == LockType.WRITE) {
+            if (!isWriteLocked(v))
+                throw new IllegalMonitorStateException("Stripe is not write-locked");
+            // nobody else can modify write-locked stripe
+            nextVersion(lo);
+            stripes.set(lo, setWriteUnlocked(v));
+            return;
+        }
+        for (;;) {
+            if (readers(v) == 0)
+                throw new IllegalMonitorStateException("Stripe is not read-locked");
+            if (stripes.compareAndSet(lo, v, removeReader(v)))
+                return;
+            v = stripes.get(lo);
+        }
+    }
+    
+ 
+   
+    /**
+     * Increments version of a stripe, which is write-locked 
+     * by current thread
+     */
+    void nextVersion(int lo) {
+        int i = versionIndex(lo);
+        versions.lazySet(i, versions.get(i) + 1);
+    }
+    
+    
+    /**
+     * Index of a version of a stripe. In padded layout, each 
+     * version occupies its own cache line as well
+     */
+    int versionIndex(int lo) {
+        return spacingLog == 0 ? lo : lo >> 1;
+    }
+    
+    
+    
+    Queue<Waiter> waitList(int lo) {
+        int i = lo >> spacingLog;
+        Queue<Waiter> q = waitLists.get(i);
+        if (q == null) {
+            waitLists.compareAndSet(i, null, new ConcurrentLinkedQueue<>());
+            q = waitLists.get(i);
+        }
+        return q;
+    }
+    
+    
+    
+    /**
+     * Tries to acquire locks for a waiter which is claimed by 
+     * current thread (i. e. is in BUSY state), otherwise puts it 
+     * to the wait list of the stripe that is found unavailable.
+     * <p>
+     * To avoid lost wakeups, a waiter is released to WAITING state 
+     * only after it is seen blocked by the stripe in whose list
+     * it already sits. A thread releasing that stripe afterwards 
+     * will find the waiter in the list, and either claim it, 
+     * or (if it is claimed by somebody else) mark for RETRY
+     */
+    void process(Waiter w) {
+        for (;;) {
+            int lo = tryGetLocks(w.locks, w.type, true);
+            if (lo < 0) {
+                int b = w.blockedOn;
+                w.state = Waiter.ACQUIRED;
+                if (b >= 0)
+                    waitList(b).remove(w);
+                if (w.th != null)
+                    LockSupport.unpark(w.th);
+                else
+                    completeAsync(w);
+                return;
+            }
+            if (lo != w.blockedOn) {
+                waitList(lo).add(w);
+                if (w.blockedOn >= 0)
+                    waitList(w.blockedOn).remove(w);
+                w.blockedOn = lo;
+                continue;               // re-check after getting into the list
+            }
+            if (w.casState(Waiter.BUSY, Waiter.WAITING))
+                return;
+            w.state = Waiter.BUSY;      // was RETRY
+        }
+    }
+    
+    
+    
+    /**
+     * Gives waiters of a released stripe a chance to acquire locks.
+     * Waiters are visited in order they entered the list
+     */
+    void signalWaiters(int lo) {
+        Queue<Waiter> q = waitLists.get(lo >> spacingLog);
+        if (q == null || q.isEmpty())
+            return;
+        for (Waiter w : q) {
+            for (;;) {
+                int s = w.state;
+                if (s == Waiter.WAITING) {
+                    if (w.casState(s, Waiter.BUSY)) {
+                        process(w);
+                        break;
+                    }
+                } else if (s == Waiter.BUSY) {
+                    if (w.casState(s, Waiter.RETRY))
+                        break;
+                } else {
+                    if (s != Waiter.RETRY)
+                        q.remove(w);    // acquired or cancelled
+                    break;
+                }
+            }
+        }
+    }
+    
+    
+    
+    /**
+     * Tries to acquire locks for an asynchronous request, completing
+     * given future if succeeded, otherwise returns a waiter to be 
+     * enqueued
+     */
+    Waiter tryLockAsync(Phase p, LockType type, Executor executor, int[] locks,
+                        CompletableFuture<Lock> f, boolean precheck) {
+        final LockStats st = stats;
+        int lo = tryGetLocks(locks, type, precheck);
+        if (lo < 0) {
+            if (st != null)
+                st.acquired();
+            if (p.tagged)
+                resizer.acquired(locks, holds.get());
+            CompositeLock lock = new CompositeLock(locks, type, false);
+            lock.phase = p;
+            lock.recordOwner();
+            f.complete(lock);
+            return null;
+        }
+        Waiter w = new Waiter(null, locks, type);
+        w.future = f;
+        w.executor = executor;
+        w.phase = p;
+        if (diagnostics != null)
+            w.since = System.nanoTime();
+        if (st != null) {
+            st.conflict(lo >> spacingLog);
+            st.waiterEntered();
+            w.stats = st;
+            w.since = System.nanoTime();
+        }
+        if (p.tagged)
+            resizer.conflict(lo, locks, holds.get());
+        return w;
+    }
+    
+    
+    
+    /**
+     * Puts asynchronous waiter to a wait list (or acquires its locks
+     * if they are available already). Cancelling its future 
+     * withdraws it
+     */
+    void enqueue(Waiter w) {
+        CompletableFuture<Lock> f = w.future;
+        f.whenComplete((l, e) -> {
+            if (f.isCancelled() && cancel(w)) {
+                if (w.stats != null)
+                    w.stats.waiterLeft();
+                w.phase.exited.increment();
+            }
+        });
+        process(w);
+    }
+    
+    
+    
+    /**
+     * Completes the future of asynchronous waiter whose locks 
+     * are acquired. If the future is cancelled meanwhile, 
+     * locks are released
+     */
+    void completeAsync(Waiter w) {
+        if (w.stats != null) {
+            w.stats.waiterLeft();
+            w.stats.acquiredAfterWait(System.nanoTime() - w.since);
+        }
+        CompositeLock lock = new CompositeLock(w.locks, w.type, false);
+        lock.phase = w.phase;
+        lock.recordOwner();
+        Runnable r = () -> {
+            if (!w.future.complete(lock))
+                lock.unlock();
+        };
+        if (w.executor == null)
+            r.run();
+        else {
+            try {
+                w.executor.execute(r);
+            } catch (RejectedExecutionException e) {
+                r.run();
+            }
+        }
+    }
+    
+    
+    
+    /**
+     * Waiters in all wait lists, which are not acquired yet. Threads 
+     * represent blocked waiters, futures represent asynchronous ones
+     */
+    Collection<LockDiagnostics.Wait> waits() {
+        List<LockDiagnostics.Wait> res = new ArrayList<>();
+        for (int i = 0; i < waitLists.length(); i++) {
+            Queue<Waiter> q = waitLists.get(i);
+            if (q == null)
+                continue;
+            for (Waiter w : q) {
+                int s = w.state;
+                int b = w.blockedOn;
+                if (s == Waiter.ACQUIRED || s == Waiter.CANCELLED || b < 0)
+                    continue;
+                res.add(new LockDiagnostics.Wait(w.th != null ? w.th : w.future, 
+                                                 b >> spacingLog, w.since));
+            }
+        }
+        return res;
+    }
+    
+    
+    
+    /**
+     * Number of waiters in all wait lists. It is O(number of stripes),
+     * so not intended to be called frequently
+     */
+    int waitersCount() {
+        int c = 0;
+        for (int i = 0; i < waitLists.length(); i++) {
+            Queue<Waiter> q = waitLists.get(i);
+            if (q != null)
+                c += q.size();
+        }
+        return c;
+    }
+    
+    
+    public static enum LockType { READ, WRITE }
+    
+    
+    
+    /**
+     * Mapping of objects to stripes: by `mask`, and in transition 
+     * also by `oldMask`. Acquisitions made in a phase are counted, 
+     * so resizer knows when they are over
+     */
+    static final class Phase {
+        
+        final int oldMask;
+        final int mask;
+        final boolean tagged;       // if auto-resizing, see `Resizer`
+        final LongAdder entered = new LongAdder();
+        final LongAdder exited  = new LongAdder();
+        
+        Phase(int oldMask, int mask, boolean tagged) {
+            this.oldMask = oldMask;
+            this.mask = mask;
+            this.tagged = tagged;
+        }
+        
+        boolean isTransition() {
+            return oldMask != mask;
+        }
+        
+        /**
+         * Tells if all locks acquired in this phase are released. 
+         * Exits are summed first, so an exit can't be seen 
+         * without its entry
+         */
+        boolean isDrained() {
+            long ex = exited.sum();
+            return entered.sum() == ex;
+        }
+    }
+    
+    
+    
+    /**
+     * Periodic task which measures false conflicts and changes 
+     * the mask. A stripe is tagged by the last object locked by it, 
+     * so a conflict is false if the tag differs from the tag of 
+     * the object being locked. Resizing goes stable → transition 
+     * → stable, and each next phase begins only after the phase 
+     * before the previous is drained
+     */
+    final class Resizer implements Runnable {
+        
+        final int minMask;
+        final AtomicIntegerArray tags = new AtomicIntegerArray(waitLists.length());
+        final LongAdder acquisitions   = new LongAdder();
+        final LongAdder falseConflicts = new LongAdder();
+        Phase retiring;
+        
+        Resizer(int minMask) {
+            this.minMask = minMask;
+        }
+        
+        
+        void acquired(int[] locks, Holds h) {
+            acquisitions.increment();
+            for (int i = 0; i < locks.length; i++)
+                tags.lazySet(locks[i] >> spacingLog, h.tags[i]);
+        }
+        
+        
+        void conflict(int lo, int[] locks, Holds h) {
+            int i = Arrays.binarySearch(locks, lo);
+            if (i >= 0 && tags.get(lo >> spacingLog) != h.tags[i])
+                falseConflicts.increment();
+        }
+        
+        
+        @Override
+        public synchronized void run() {
+            Phase p = phase;
+            if (retiring != null) {
+                if (!retiring.isDrained())
+                    return;
+                retiring = null;
+                if (p.isTransition()) {
+                    switchTo(new Phase(p.mask, p.mask, true));
+                    return;
+                }
+            }
+            if (acquisitions.sum() < RESIZE_MIN_SAMPLE)
+                return;
+            double rate = (double) falseConflicts.sumThenReset() 
+                                    / acquisitions.sumThenReset();
+            if (rate > RESIZE_GROW_RATE && p.mask < mask)
+                resizeTo(p.mask << 1 | 1);
+            else if (rate < RESIZE_SHRINK_RATE && p.mask > minMask)
+                resizeTo(p.mask >>> 1);
+        }
+        
+        
+        synchronized void resizeTo(int newMask) {
+            switchTo(new Phase(phase.mask, newMask, true));
+        }
+        
+        
+        void switchTo(Phase next) {
+            retiring = phase;
+            phase = next;
+            acquisitions.reset();
+            falseConflicts.reset();
+        }
+    }
+    
+    
+    
+    /**
+     * Back-off policy for waiting on a stripe reserved by another 
+     * thread: first busy spin, then yield, then park for 
+     * exponentially growing time (up to a limit).
+     * Reservation lasts a short time, so spinning is usually 
+     * enough, while yielding and parking protect from burning 
+     * cores under heavy contention
+     */
+    public static final class Backoff {
+        
+        /** 64 spins, then 16 yields, then parks up to 100 μs */
+        public static final Backoff DEFAULT = new Backoff(64, 16, 100_000);
+        
+        final int spins;
+        final int yields;
+        final long maxParkNanos;
+        
+        
+        /**
+         * @param spins        number of busy spins before yielding
+         * @param yields       number of yields before parking
+         * @param maxParkNanos maximal time of a single park
+         */
+        public Backoff(int spins, int yields, long maxParkNanos) {
+            if (spins < 0 || yields < 0 || maxParkNanos <= 0)
+                throw new IllegalArgumentException(
+                        "spins and yields must be >= 0, maxParkNanos must be > 0");
+            this.spins = spins;
+            this.yields = yields;
+            this.maxParkNanos = maxParkNanos;
+        }
+        
+        
+        /**
+         * Pauses current thread for n-th time in a row
+         */
+        void pause(int n) {
+            if (n <= spins)
+                return;
+            n -= spins;
+            if (n <= yields) {
+                Thread.yield();
+                return;
+            }
+            n -= yields;
+            // 1 μs, 2 μs, 4 μs... 
+            long t = n > 30 ? maxParkNanos : Math.min(1000L << (n - 1), maxParkNanos);
+            LockSupport.parkNanos(t);
+        }
+    }
+    
+    
+    
+    /**
+     * Stripes held by a thread together with their hold counts 
+     * and lock types, plus a scratch buffer for collecting stripes. 
+     * Expected to contain a few entries, so plain arrays with 
+     * linear search are used; they are only grown, so no 
+     * allocation happens once a thread warms up
+     */
+    static final class Holds {
+        
+        int size = 0;
+        int[] stripes = new int[8];
+        int[] counts  = new int[8];
+        LockType[] types = new LockType[8];
+        int[] buffer  = new int[8];     // for `collectLocks`
+        volatile int fence;             // written by `validate`
+        long[] packed;                  // same, in auto-resizing mode
+        int[] tags;                     // of last collected stripes
+        
+        
+        int[] buffer(int capacity) {
+            if (buffer.length < capacity)
+                buffer = new int[Math.max(capacity, buffer.length * 2)];
+            return buffer;
+        }
+        
+        
+        long[] packed(int capacity) {
+            if (packed == null || packed.length < capacity)
+                packed = new long[Math.max(capacity, 16)];
+            return packed;
+        }
+        
+        
+        int[] tags(int capacity) {
+            if (tags == null || tags.length < capacity)
+                tags = new int[Math.max(capacity, 16)];
+            return tags;
+        }
+        
+        
+        int indexOf(int stripe) {
+            for (int i = 0; i < size; i++) {
+                if (stripes[i] == stripe)
+                    return i;
+            }
+            return -1;
+        }
+        
+        
+        /**
+         * Returns stripes from given ones which are not held yet, 
+         * or the same array if none of them is held
+         * @throws IllegalMonitorStateException if write lock is 
+         *         requested for a stripe held for read
+         */
+        int[] notHeld(int[] locks, LockType type) {
+            if (size == 0)
+                return locks;
+            int held = 0;
+            for (int lo : locks) {
+                int i = indexOf(lo);
+                if (i < 0)
+                    continue;
+                if (type == LockType.WRITE && types[i] == LockType.READ)
+                    throw new IllegalMonitorStateException(
+                            "Cannot acquire write lock while holding read lock");
+                held++;
+            }
+            if (held == 0)
+                return locks;
+            int[] fresh = new int[locks.length - held];
+            int j = 0;
+            for (int lo : locks) {
+                if (indexOf(lo) < 0)
+                    fresh[j++] = lo;
+            }
+            return fresh;
+        }
+        
+        
+        void hold(int[] locks, LockType type) {
+            for (int lo : locks) {
+                int i = indexOf(lo);
+                if (i >= 0) {
+                    counts[i]++;
+                    continue;
+                }
+                if (size == stripes.length) {
+                    stripes = Arrays.copyOf(stripes, size * 2);
+                    counts  = Arrays.copyOf(counts, size * 2);
+                    types   = Arrays.copyOf(types, size * 2);
+                }
+                stripes[size] = lo;
+                counts[size]  = 1;
+                types[size]   = type;
+                size++;
+            }
+        }
+        
+        
+        /**
+         * Decrements hold count of a stripe, returning lock type 
+         * it was held with if the count became zero (so the stripe
+         * should be actually released), otherwise null
+         * @throws IllegalMonitorStateException if the stripe isn't held
+         */
+        LockType unhold(int lo) {
+            int i = indexOf(lo);
+            if (i < 0)
+                throw new IllegalMonitorStateException(
+                        "Lock is not held by current thread");
+            if (--counts[i] > 0)
+                return null;
+            LockType t = types[i];
+            size--;
+            stripes[i] = stripes[size];
+            counts[i]  = counts[size];
+            types[i]   = types[size];
+            types[size] = null;
+            return t;
+        }
+        
+        
+        /**
+         * Checks that given stripes are held only once, i. e. not 
+         * shared with other (reentered) locks of current thread
+         * @throws IllegalMonitorStateException otherwise
+         */
+        void checkHeldOnce(int[] locks) {
+            for (int lo : locks) {
+                int i = indexOf(lo);
+                if (i < 0)
+                    throw new IllegalMonitorStateException(
+                            "Lock is not held by current thread");
+                if (counts[i] > 1)
+                    throw new IllegalMonitorStateException(
+                            "Lock type cannot be changed while stripes are reentered");
+            }
+        }
+        
+        
+        void retype(int[] locks, LockType type) {
+            for (int lo : locks)
+                types[indexOf(lo)] = type;
+        }
+    }
+    
+
+    static final int PADDED_SPACING_LOG = 4;   // 16 ints = 64 bytes
+    static final int INSERTION_SORT_THRESHOLD = 16;
+    
+    public static final double RESIZE_GROW_RATE   = 0.05;
+    public static final double RESIZE_SHRINK_RATE = 0.005;
+    static final int RESIZE_MIN_SAMPLE = 1000;
+    
+    static final int RESERVED_BIT     = 1 << 30;
+    static final int WRITE_LOCKED_BIT = 1 << 29;
+    static final int READERS_MASK     = (1 << 16) - 1;
+    
+    
+    
+    static boolean isReserved(int lock) {
+        return (RESERVED_BIT & lock) > 0;
+    }
+    
+    static int setReserved(int lock) {
+        return RESERVED_BIT | lock;
+    }
+    
+    static int setUnreserved(int lock) {
+        return ~RESERVED_BIT & lock;
+    }
+    
+    static boolean isWriteLocked(int lock) {
+        return (WRITE_LOCKED_BIT & lock) > 0;
+    }
+    
+    static int setWriteLocked(int lock) {
+        return WRITE_LOCKED_BIT | setUnreserved(lock);
+    }
+    
+    static int setWriteUnlocked(int lock) {
+        return ~WRITE_LOCKED_BIT & setUnreserved(lock);
+    }
+    
+    static int readers(int lock) {
+        return READERS_MASK & lock;
+    }
+    
+    static int addReader(int lock) {
+        return setUnreserved(lock) + 1;
+    }
+    
+    static int removeReader(int lock) {
+        return lock - 1;
+    }
+    
+    /**
+     * Tells if a stripe can be acquired for write (no writer and 
+     * no readers) or for read (no writer and reader count 
+     * isn't saturated)
+     */
+    static boolean isAvailable(int lock, boolean write) {
+        if (isWriteLocked(lock))
+            return false;
+        return write ? readers(lock) == 0 : readers(lock) < READERS_MASK;
+    }
+    
+    
+    
+    public static class Waiter {
+        
+        static final int WAITING   = 0;   // in a wait list
+        static final int BUSY      = 1;   // locks are being acquired for it
+        static final int RETRY     = 2;   // BUSY, and some stripe was released meanwhile
+        static final int ACQUIRED  = 3;
+        static final int CANCELLED = 4;
+        
+        static final AtomicIntegerFieldUpdater<Waiter> stateUpdater 
+            = AtomicIntegerFieldUpdater.newUpdater(Waiter.class, "state");
+        
+        volatile int state = BUSY;        // owned by creator until enqueued
+        volatile int blockedOn = -1;      // stripe in whose wait list it is
+        final Thread th;                  // null for asynchronous waiter
+        final int[] locks;
+        final LockType type;
+        
+        // asynchronous waiter stuff
+        CompletableFuture<Lock> future;
+        Executor executor;
+        LockStats stats;
+        Phase phase;
+        long since;                       // if stats or diagnostics are enabled
+        
+        Waiter(final Thread th, final int[] locks, final LockType type) {
+            this.th = th;
+            this.locks = locks;
+            this.type = type;
+        }
+        
+        boolean casState(int expect, int update) {
+            return stateUpdater.compareAndSet(this, expect, update);
+        }
+    }
+    
+    
+    
+    
+    /**
+     * Versions of stripes taken by <tt>LockKeeperV2#tryOptimisticRead</tt>.
+     * Versions are 64-bit counters of write locks, so they never 
+     * wrap around in practice
+     */
+    public static final class Stamp {
+        
+        final int[] locks;
+        final long[] versions;
+        final Phase phase;
+        
+        Stamp(int[] locks, long[] versions, Phase phase) {
+            this.locks = locks;
+            this.versions = versions;
+            this.phase = phase;
+        }
+    }
+    
+    
+    
+    
+    static final AtomicIntegerFieldUpdater<CompositeLock> releasedUpdater
+        = AtomicIntegerFieldUpdater.newUpdater(CompositeLock.class, "released");
+    
+    
+    /**
+     * Composite lock class. Can be obtained by <tt>LockKeeper#lockAndGet</tt>
+     */
+    public class CompositeLock implements Lock {
+
+        private static final String UNSUPPORTED_MSG 
+                = "This lock is in locked state when obtained by lockAndGet()";
+        
+        final int[] keptLocks;
+        LockType type;
+        final boolean owned;     // by a thread, see `Holds`
+        Phase phase;             // in which acquired
+        volatile int released;   // 1 once unlocked
+        
+        CompositeLock(int[] locks, LockType type) {
+            this(locks, type, true);
+        }
+        
+        CompositeLock(int[] locks, LockType type, boolean owned) {
+            keptLocks = locks;
+            this.type = type;
+            this.owned = owned;
+        }
+        
+        /**
+         * Releases locks for all objects this lock was obtained for.
+         * Stripes that are still held by outer (reentered) locks 
+         * remain acquired. Locks obtained asynchronously may be
+         * released by any thread, but only once
+         * @throws IllegalMonitorStateException if current thread 
+         *         doesn't hold this lock, or it is already released
+         */
+        @Override
+        public void unlock() {
+            if (!owned) {
+                if (!releasedUpdater.compareAndSet(this, 0, 1))
+                    throw new IllegalMonitorStateException("Lock is already released");
+                final LockDiagnostics d = diagnostics;
+                for (int lo : keptLocks) {
+                    release(lo, type);
+                    if (d != null)
+                        d.released(lo >> spacingLog, this);
+                }
+                for (int lo : keptLocks) 
+                    signalWaiters(lo);
+                exitPhase();
+                return;
+            }
+            if (released != 0)
+                throw new IllegalMonitorStateException("Lock is already released");
+            unholdAll(keptLocks);
+            released = 1;
+            exitPhase();
+        }
+        
+        
+        /**
+         * Records this lock as owner of its stripes, if diagnostics
+         * is enabled (for asynchronous locks, which have no owner thread)
+         */
+        void recordOwner() {
+            final LockDiagnostics d = diagnostics;
+            if (d != null) {
+                for (int lo : keptLocks)
+                    d.acquired(lo >> spacingLog, this);
+            }
+        }
+        
+        
+        void exitPhase() {
+            if (phase != null) {
+                phase.exited.increment();
+                phase = null;
+            }
+        }
+        
+        
+        /**
+         * Atomically converts this exclusive (write) lock to shared 
+         * (read) lock for all its objects. Never blocks; no other 
+         * writer can get in between
+         * 
+         * @throws IllegalStateException if this is not a write lock
+         * @throws IllegalMonitorStateException if current thread doesn't 
+         *         hold this lock, or it is already released, or some 
+         *         of its objects are also locked by other (reentered) 
+         *         locks of current thread
+         */
+        public void downgrade() {
+            if (released != 0)
+                throw new IllegalMonitorStateException("Lock is already released");
+            if (type != LockType.WRITE)
+                throw new IllegalStateException("Not a write lock");
+            Holds h = owned ? holds.get() : null;
+            if (h != null)
+                h.checkHeldOnce(keptLocks);
+            // nobody else can modify write-locked stripe
+            for (int lo : keptLocks) {
+                nextVersion(lo);
+                stripes.set(lo, addReader(setWriteUnlocked(stripes.get(lo))));
+            }
+            type = LockType.READ;
+            if (h != null)
+                h.retype(keptLocks, type);
+            for (int lo : keptLocks)
+                signalWaiters(lo);
+        }
+        
+        
+        /**
+         * Atomically converts this shared (read) lock to exclusive 
+         * (write) lock for all its objects, if there are no other 
+         * readers of them. Never waits for other readers: if some 
+         * object is read-locked by somebody else, the lock remains 
+         * unchanged
+         * 
+         * @return true if the lock is upgraded
+         * @throws IllegalStateException if this is not a read lock
+         * @throws IllegalMonitorStateException if current thread doesn't 
+         *         hold this lock, or it is already released, or some 
+         *         of its objects are also locked by other (reentered) 
+         *         locks of current thread
+         */
+        public boolean tryUpgrade() {
+            if (released != 0)
+                throw new IllegalMonitorStateException("Lock is already released");
+            if (type != LockType.READ)
+                throw new IllegalStateException("Not a read lock");
+            Holds h = owned ? holds.get() : null;
+            if (h != null)
+                h.checkHeldOnce(keptLocks);
+            // stripes are reserved in order, like in `tryGetLocks`, 
+            // so no new readers can come in meanwhile
+            for (int k = 0; k < keptLocks.length; k++) {
+                final int lo = keptLocks[k];
+                for (;;) {
+                    int v = stripes.get(lo);
+                    if (isReserved(v))
+                        v = awaitUnreserved(lo);
+                    if (readers(v) != 1) {
+                        for (int j = 0; j < k; j++)
+                            unreserve(keptLocks[j]);
+                        return false;
+                    }
+                    if (stripes.compareAndSet(lo, v, setReserved(v)))
+                        break;
+                }
+            }
+            // the only reader is current one, so stripes don't change
             for (int lo : keptLocks)
-                stripes.set(lo, setWriteUnlocked(stripes.get(lo)));
-            LockKeeperV2.this.tryUnlockWaiters();
+                stripes.set(lo, setWriteLocked(removeReader(stripes.get(lo))));
+            type = LockType.WRITE;
+            if (h != null)
+                h.retype(keptLocks, type);
+            return true;
         }
 
         @Override
@@ -0,0 +1,208 @@
+package ru.salauyou.util.concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * Contention statistics of a lock keeper ({@link LockKeeper}, 
+ * {@link LockKeeperV2}), collected after it is enabled by 
+ * <tt>enableStats()</tt>. Counters are striped, and conflict 
+ * counters of stripes may be padded to separate cache lines, 
+ * so collecting doesn't introduce new points of contention, 
+ * while keepers that don't collect statistics pay only for 
+ * a null check.
+ * <p>
+ * Collected are: number of acquisitions, number of contended 
+ * ones (i. e. which had to wait), histogram of wait times 
+ * of contended acquisitions, current number of waiters, and
+ * number of conflicts per stripe, which allows to find the 
+ * hottest stripes and tune number of stripes
+ * 
+ * @author Salauyou
+ */
+public final class LockStats implements LockStatsMXBean {
+    
+    /**
+     * Number of wait time buckets. Bucket <tt>i</tt> counts waits 
+     * lasting [2<sup>i</sup>, 2<sup>i + 1</sup>) μs, except the first
+     * (which counts also waits shorter than 1 μs) and the last 
+     * (which counts also longer waits)
+     */
+    public static final int BUCKETS = 24;
+    
+    static final int PADDED_SPACING_LOG = 3;    // 8 longs = 64 bytes
+
+    final LongAdder acquisitions = new LongAdder();
+    final LongAdder contended = new LongAdder();
+    final LongAdder[] waitTimes = new LongAdder[BUCKETS];
+    final LongAdder waiters = new LongAdder();
+    final AtomicLongArray conflicts;
+    final int stripes;
+    final int spacingLog;   // log₂ of distance between counters in `conflicts`
+    
+    
+    /**
+     * @param padded if true, conflict counter of each stripe 
+     *        occupies its own cache line
+     */
+    LockStats(int stripes, boolean padded) {
+        for (int i = 0; i < BUCKETS; i++)
+            waitTimes[i] = new LongAdder();
+        this.stripes = stripes;
+        spacingLog = padded ? PADDED_SPACING_LOG : 0;
+        conflicts = new AtomicLongArray(stripes << spacingLog);
+    }
+    
+    
+    // ------------- recording ------------- //
+    
+    void acquired() {
+        acquisitions.increment();
+    }
+    
+    
+    void acquiredAfterWait(long waitNanos) {
+        acquisitions.increment();
+        contended.increment();
+        long us = TimeUnit.NANOSECONDS.toMicros(waitNanos);
+        int b = us <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(us);
+        waitTimes[Math.min(b, BUCKETS - 1)].increment();
+    }
+    
+    
+    void conflict(int stripe) {
+        conflicts.incrementAndGet(stripe << spacingLog);
+    }
+    
+    
+    void waiterEntered() {
+        waiters.increment();
+    }
+    
+    
+    void waiterLeft() {
+        waiters.decrement();
+    }
+    
+    
+    // ------------- reporting ------------- //
+    
+    /**
+     * Total number of acquired locks
+     */
+    @Override
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+    
+    
+    /**
+     * Number of acquired locks that had to wait
+     */
+    @Override
+    public long getContendedAcquisitions() {
+        return contended.sum();
+    }
+    
+    
+    /**
+     * Number of threads waiting for locks at the moment
+     */
+    @Override
+    public int getWaiters() {
+        return (int) waiters.sum();
+    }
+    
+    
+    /**
+     * Histogram of wait times of contended acquisitions 
+     * (see {@link #BUCKETS})
+     */
+    @Override
+    public long[] getWaitTimeHistogram() {
+        long[] h = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            h[i] = waitTimes[i].sum();
+        return h;
+    }
+    
+    
+    /**
+     * Returns up to n stripes having most conflicts, 
+     * starting from the hottest one. Stripes which 
+     * never had conflicts are not returned
+     */
+    @Override
+    public int[] getHottestStripes(int n) {
+        if (n <= 0)
+            return new int[0];
+        // min-heap of [stripe, conflicts] keeping n hottest ones
+        PriorityQueue<long[]> top = new PriorityQueue<>(n, 
+                (a, b) -> Long.compare(a[1], b[1]));
+        for (int i = 0; i < stripes; i++) {
+            long c = conflicts.get(i << spacingLog);
+            if (c == 0)
+                continue;
+            if (top.size() < n)
+                top.add(new long[] { i, c });
+            else if (top.peek()[1] < c) {
+                top.poll();
+                top.add(new long[] { i, c });
+            }
+        }
+        int[] res = new int[top.size()];
+        for (int i = res.length - 1; i >= 0; i--)
+            res[i] = (int) top.poll()[0];
+        return res;
+    }
+    
+    
+    /**
+     * Number of conflicts on a given stripe, i. e. how many 
+     * times acquisition found it unavailable
+     */
+    @Override
+    public long getStripeContention(int stripe) {
+        return conflicts.get(stripe << spacingLog);
+    }
+    
+    
+    /**
+     * Resets all counters except current number of waiters
+     */
+    @Override
+    public void reset() {
+        acquisitions.reset();
+        contended.reset();
+        for (LongAdder a : waitTimes)
+            a.reset();
+        for (int i = 0; i < stripes; i++)
+            conflicts.set(i << spacingLog, 0);
+    }
+    
+    
+    /**
+     * Registers these statistics in platform MBean server
+     * under a given name
+     * 
+     * @param objectName e. g. "ru.salauyou:type=LockStats,name=accounts"
+     * @throws IllegalStateException if registration failed
+     */
+    public ObjectName registerMBean(String objectName) throws IllegalStateException {
+        try {
+            ObjectName name = new ObjectName(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register MBean " + objectName, e);
+        }
+    }
+    
+}
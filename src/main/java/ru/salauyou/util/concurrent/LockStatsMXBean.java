@@ -0,0 +1,25 @@
+package ru.salauyou.util.concurrent;
+
+
+/**
+ * JMX view of {@link LockStats}
+ * 
+ * @author Salauyou
+ */
+public interface LockStatsMXBean {
+
+    long getAcquisitions();
+    
+    long getContendedAcquisitions();
+    
+    int getWaiters();
+    
+    long[] getWaitTimeHistogram();
+    
+    int[] getHottestStripes(int n);
+    
+    long getStripeContention(int stripe);
+    
+    void reset();
+    
+}
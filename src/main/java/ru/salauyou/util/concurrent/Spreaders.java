@@ -0,0 +1,44 @@
+package ru.salauyou.util.concurrent;
+
+import java.util.function.IntUnaryOperator;
+
+
+/**
+ * Hash spreaders for stripe-based lockers ({@link LockKeeper}, 
+ * {@link LockKeeperV2}). A spreader is applied to 
+ * <tt>hashCode()</tt> of an object before its stripe is chosen 
+ * by the lowest bits, so keys whose hash codes differ only 
+ * in higher bits (e. g. sequential ids multiplied by 1024) 
+ * still get spread evenly over the stripes
+ * 
+ * @author Salauyou
+ */
+public final class Spreaders {
+    
+    private Spreaders() { }
+    
+    
+    /**
+     * Finalization mix of MurmurHash3: every bit of input 
+     * affects every bit of result. Used by default
+     */
+    public static final IntUnaryOperator MURMUR3 = Spreaders::murmur3;
+    
+    
+    /**
+     * Uses hash codes as is. Good for keys which are known 
+     * to have well distributed lowest bits
+     */
+    public static final IntUnaryOperator IDENTITY = h -> h;
+    
+    
+    static int murmur3(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+}
@@ -0,0 +1,178 @@
+package ru.salauyou.util.collect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+
+public class TestConcurrentExpirableMap {
+    
+    
+    @Test
+    public void testExpiration() throws Exception {
+        ConcurrentExpirableMap<String, Integer> m = new ConcurrentExpirableMap<>(50);
+        m.put("a", 1);
+        m.put("b", 2, 10000);
+        m.putForever("c", 3);
+        m.put("d", 1, 10000);
+        m.put("d", 4);
+        assertEquals(4, m.size());
+        Thread.sleep(100);
+        assertNull(m.get("a"));
+        assertNull(m.get("d"));
+        assertEquals(2, (int) m.get("b"));
+        assertEquals(3, (int) m.get("c"));
+        assertEquals(2, m.size());
+        
+        Map<String, Integer> copy = new HashMap<>(m);
+        assertEquals(2, copy.size());
+        assertEquals(2, (int) copy.get("b"));
+    }
+    
+    
+    @Test
+    public void testConditionalUpdates() throws Exception {
+        ConcurrentExpirableMap<String, Integer> m = new ConcurrentExpirableMap<>(50);
+        assertNull(m.putIfAbsent("a", 1));
+        assertEquals(1, (int) m.putIfAbsent("a", 2));
+        assertFalse(m.replace("a", 2, 3));
+        assertTrue(m.replace("a", 1, 3));
+        assertFalse(m.remove("a", 1));
+        
+        // null value never matches, as in ConcurrentHashMap
+        assertFalse(m.remove("a", null));
+        assertFalse(m.entrySet().remove(new SimpleEntry<>("a", null)));
+        assertEquals(3, (int) m.get("a"));
+        
+        // expired entries are absent, replacing keeps deadline
+        m.put("b", 1, 10000);
+        assertEquals(1, (int) m.replace("b", 2));
+        Thread.sleep(100);
+        assertNull(m.replace("a", 4));
+        assertNull(m.putIfAbsent("a", 5, 10000));
+        assertEquals(5, (int) m.get("a"));
+        assertEquals(2, (int) m.get("b"));
+        assertTrue(m.remove("b", 2));
+        assertEquals(1, m.size());
+        m.clear();
+        assertTrue(m.isEmpty());
+    }
+    
+    
+    @Test
+    public void testViews() throws Exception {
+        ConcurrentExpirableMap<Integer, Integer> m = new ConcurrentExpirableMap<>(10000);
+        for (int i = 0; i < 100000; i++)
+            m.put(i, i, i % 2 == 0 ? 0 : 10000);
+        Thread.sleep(1);
+        
+        // expired entries are skipped without clean-up
+        long sum = 0;
+        for (int k : m.keySet())
+            sum += k;
+        assertEquals(2500000000L, sum);
+        assertEquals(2500000000L, m.values().parallelStream().mapToLong(v -> v).sum());
+        assertEquals(50000, m.entrySet().parallelStream().filter(e -> e.getKey() % 2 == 1).count());
+        assertFalse(m.keySet().contains(0));
+        assertTrue(m.entrySet().contains(new SimpleEntry<>(1, 1)));
+        
+        // removal through views is conditional
+        Iterator<Entry<Integer, Integer>> it = m.entrySet().iterator();
+        Entry<Integer, Integer> e = it.next();
+        m.put(e.getKey(), -1);
+        it.remove();
+        assertEquals(-1, (int) m.get(e.getKey()));
+        Iterator<Integer> vit = m.values().iterator();
+        while (vit.hasNext()) {
+            if (vit.next() % 4 == 1)
+                vit.remove();
+        }
+        assertTrue(m.keySet().remove(3));
+        assertEquals(24999 + (e.getKey() % 4 == 1 ? 1 : 0), m.size());
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testSweeper() throws Exception {
+        ConcurrentExpirableMap<Integer, Integer> m = new ConcurrentExpirableMap<>(10000, 4);
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+        // passes are made manually
+        ScheduledFuture<?> task = m.enableSweeper(ses, 1, TimeUnit.HOURS, 30);
+        for (int i = 0; i < 100; i++)
+            m.put(i, i, i < 50 ? 0 : 10000);
+        Thread.sleep(1);
+        
+        // reads and writes don't clean up, but expired entries are not seen
+        m.put(100, 100);
+        assertNull(m.get(0));
+        assertFalse(m.containsKey(1));
+        assertNull(m.remove(2));
+        assertEquals(30, m.sweep(30));
+        assertEquals(19, m.sweep(30));
+        assertEquals(0, m.sweep(30));
+        assertEquals(51, m.size());
+        
+        // cancelled sweeper leaves clean-up to operations
+        task.cancel(false);
+        m.put(200, 200, 0);
+        Thread.sleep(1);
+        m.put(300, 300);
+        assertEquals(0, m.sweep(30));
+        ses.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 30000)
+    public void testConcurrentUpdates() throws Exception {
+        ConcurrentExpirableMap<Integer, Integer> m = new ConcurrentExpirableMap<>(20, 4);
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        AtomicInteger hits = new AtomicInteger();
+        List<Future<?>> fs = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            fs.add(es.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int i = 0; i < 200000; i++) {
+                    int key = rnd.nextInt(1000);
+                    int op = rnd.nextInt(4);
+                    if (op == 0)
+                        m.put(key, key, rnd.nextInt(30));
+                    else if (op == 1)
+                        m.remove(key);
+                    else if (m.get(key) != null)
+                        hits.incrementAndGet();
+                }
+            }));
+        }
+        for (Future<?> f : fs)
+            f.get();
+        es.shutdownNow();
+        assertTrue(hits.get() > 0);
+        
+        // all deadlines are gone together with entries
+        Thread.sleep(50);
+        assertEquals(0, m.size());
+        assertTrue(m.data.isEmpty());
+        for (ExpirationQueue<Integer> q : m.stripes)
+            assertEquals(0, q.size());
+    }
+    
+}
@@ -0,0 +1,233 @@
+package ru.salauyou.util.collect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class TestExpirableMap {
+    
+    
+    @Test
+    public void testExpiration() throws Exception {
+        ExpirableMap<String, Integer> m = new ExpirableMap<>(new HashMap<>(), 50);
+        m.put("a", 1);
+        m.put("b", 2, 10000);
+        m.putForever("c", 3);
+        assertEquals(3, m.size());
+        Thread.sleep(100);
+        assertNull(m.get("a"));
+        assertEquals(2, (int) m.get("b"));
+        assertEquals(3, (int) m.get("c"));
+        assertEquals(2, m.size());
+    }
+    
+    
+    @Test
+    public void testPutReplacesDeadline() throws Exception {
+        ExpirableMap<String, Integer> m = new ExpirableMap<>(new HashMap<>(), 50);
+        m.put("a", 1);
+        m.put("a", 2, 10000);
+        m.put("b", 1);
+        m.putForever("b", 2);
+        m.put("c", 1, 10000);
+        m.put("c", 2);
+        Thread.sleep(100);
+        assertEquals(2, (int) m.get("a"));
+        assertEquals(2, (int) m.get("b"));
+        assertFalse(m.containsKey("c"));
+    }
+    
+    
+    @Test
+    public void testRemove() throws Exception {
+        ExpirableMap<Integer, Integer> m = new ExpirableMap<>(new HashMap<>(), 10000);
+        for (int i = 0; i < 20000; i++)
+            m.put(i, i, i % 2 == 0 ? 300 : 10000);
+        for (int i = 0; i < 20000; i += 3)
+            m.remove(i);
+        assertNull(m.remove(3));
+        Thread.sleep(350);
+        // removed keys don't expire, re-added ones expire by new deadline
+        m.put(3, 3, 0);
+        m.put(6, 6);
+        Thread.sleep(1);
+        assertFalse(m.containsKey(3));
+        assertTrue(m.containsKey(6));
+        int odd = 0;
+        for (int i = 1; i < 20000; i += 2)
+            odd += i % 3 == 0 ? 0 : 1;
+        assertEquals(odd + 1, m.size());
+        m.clear();
+        assertTrue(m.isEmpty());
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testSweeper() throws Exception {
+        ExpirableMap<Integer, Integer> m = new ExpirableMap<>(new HashMap<>(), 10000);
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+        // passes are made manually
+        ScheduledFuture<?> task = m.enableSweeper(ses, 1, TimeUnit.HOURS, 30);
+        for (int i = 0; i < 100; i++)
+            m.put(i, i, i < 50 ? 0 : 10000);
+        Thread.sleep(1);
+        
+        // reads and writes don't clean up, but expired entries are not seen
+        m.put(100, 100);
+        assertNull(m.get(0));
+        assertFalse(m.containsKey(1));
+        assertNull(m.remove(2));
+        assertEquals(30, m.sweep(30));
+        assertEquals(17, m.sweep(30));
+        assertEquals(0, m.sweep(30));
+        assertEquals(51, m.size());
+        
+        // cancelled sweeper leaves clean-up to operations
+        task.cancel(false);
+        m.put(200, 200, 0);
+        Thread.sleep(1);
+        m.put(300, 300);
+        assertEquals(0, m.sweep(30));
+        ses.shutdownNow();
+    }
+    
+    
+    @Test
+    public void testBounds() throws Exception {
+        ExpirableMap<Integer, Integer> m = new ExpirableMap<>(new HashMap<>(), 10000, 3);
+        m.put(1, 1);
+        m.put(2, 2);
+        m.putForever(3, 3);
+        m.get(1);           // 2 becomes least recently used
+        m.put(4, 4);
+        assertFalse(m.containsKey(2));
+        assertEquals(3, m.size());
+        
+        // removed and expired entries free their place
+        m.remove(1);
+        m.put(5, 5, 0);
+        Thread.sleep(1);
+        m.put(6, 6);
+        assertEquals(3, m.size());
+        assertTrue(m.containsKey(3) && m.containsKey(4) && m.containsKey(6));
+        
+        ExpirableMap<String, String> w 
+                = new ExpirableMap<>(new HashMap<>(), 10000, 10, (k, v) -> v.length());
+        w.put("a", "12345");
+        w.putForever("b", "1234");
+        w.put("c", "12");
+        assertFalse(w.containsKey("a"));
+        w.put("b", "1");
+        w.put("d", "1234567");
+        assertEquals(3, w.size());
+        
+        // an entry heavier than the bound is not kept and evicts nothing
+        assertNull(w.put("e", "12345678901"));
+        assertFalse(w.containsKey("e"));
+        assertEquals(3, w.size());
+        assertEquals("12", w.put("c", "12345678901"));
+        assertFalse(w.containsKey("c"));
+        assertEquals(2, w.size());
+        w.put("c", "12");
+        assertTrue(w.containsKey("b") && w.containsKey("c") && w.containsKey("d"));
+    }
+    
+    
+    @Test
+    public void testViews() throws Exception {
+        ExpirableMap<Integer, Integer> m = new ExpirableMap<>(new HashMap<>(), 10000);
+        for (int i = 0; i < 100000; i++)
+            m.put(i, i, i % 2 == 0 ? 0 : 10000);
+        Thread.sleep(1);
+        
+        // expired entries are skipped without clean-up
+        long sum = 0;
+        for (int k : m.keySet())
+            sum += k;
+        assertEquals(2500000000L, sum);
+        assertEquals(2500000000L, m.values().parallelStream().mapToLong(v -> v).sum());
+        assertEquals(50000, m.entrySet().parallelStream().filter(e -> e.getKey() % 2 == 1).count());
+        assertFalse(m.keySet().contains(0));
+        assertTrue(m.entrySet().contains(new SimpleEntry<>(1, 1)));
+        
+        // removal through views keeps deadlines consistent
+        Iterator<Integer> it = m.values().iterator();
+        while (it.hasNext()) {
+            if (it.next() % 4 == 1)
+                it.remove();
+        }
+        assertTrue(m.keySet().remove(3));
+        assertTrue(m.entrySet().remove(new SimpleEntry<>(7, 7)));
+        assertFalse(m.entrySet().remove(new SimpleEntry<>(11, 0)));
+        assertEquals(24998, m.size());
+        m.put(1, 1, 0);
+        Thread.sleep(1);
+        assertEquals(24998, m.keySet().size());
+        assertFalse(m.containsKey(1));
+        
+        // removal is allowed after hasNext(), which moved past the entry
+        ExpirableMap<Integer, Integer> b = new ExpirableMap<>(new LinkedHashMap<>(), 10000, 10);
+        for (int i = 1; i <= 6; i++)
+            b.put(i, i);
+        b.put(7, 7, 0);
+        Thread.sleep(1);
+        Iterator<Integer> bit = b.keySet().iterator();
+        while (bit.hasNext()) {
+            int k = bit.next();
+            if (!bit.hasNext() || k % 2 == 0)
+                bit.remove();
+        }
+        assertEquals(Arrays.asList(1, 3, 5), new ArrayList<>(b.keySet()));
+        assertNull(b.get(6));
+        assertEquals(3, b.size());
+        for (int i = 8; i <= 14; i++)
+            b.put(i, i);
+        assertEquals(10, b.size());
+        assertTrue(b.containsKey(1));
+    }
+    
+    
+    @Test
+    public void testExpirationQueueOrder() {
+        ExpirationQueue<Integer> q = new ExpirationQueue<>();
+        Random rnd = new Random(1);
+        for (int i = 0; i < 10000; i++)
+            q.schedule(i, rnd.nextInt(100));
+        for (int i = 0; i < 10000; i += 2)
+            assertTrue(q.cancel(i));
+        for (int i = 1; i < 10000; i += 10)
+            q.schedule(i, 50);
+        assertFalse(q.cancel(0));
+        assertEquals(5000, q.size());
+        assertEquals(50, q.deadline(1));
+        
+        // by deadlines, then in order of scheduling
+        ExpirationQueue.Entry<Integer> prev = null, e;
+        int n = 0;
+        while ((e = q.pollExpired(99)) != null) {
+            if (prev != null)
+                assertTrue(prev.before(e));
+            prev = e;
+            n++;
+        }
+        assertEquals(5000, n);
+        assertEquals(Long.MAX_VALUE, q.peekDeadline());
+    }
+    
+}
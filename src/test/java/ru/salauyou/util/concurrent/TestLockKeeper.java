@@ -1,14 +1,24 @@
 package ru.salauyou.util.concurrent;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -17,6 +27,7 @@ import org.junit.Test;
 
 import helpers.Helper;
 import helpers.Model.Bank;
+import helpers.Model.LocalBank;
 import helpers.Model.Payment;
 import helpers.Model.Subject;
 import ru.salauyou.util.misc.StatsBuilder;
@@ -94,5 +105,254 @@ public class TestLockKeeper {
         es.shutdownNow();
     }
     
+    
+    @Test(timeout = 10000)
+    public void testTryLockAndGet() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(1)).get();
+        
+        assertNull(lockKeeper.tryLockAndGet(1));
+        assertNull(lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 1, 2));
+        long start = System.nanoTime();
+        assertNull(lockKeeper.tryLockAndGet(100, TimeUnit.MILLISECONDS, 2, 1));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(lockKeeper.waiters.isEmpty());
+        
+        // nothing of `2` is left acquired
+        Lock lock = lockKeeper.tryLockAndGet(2);
+        assertNotNull(lock);
+        lock.unlock();
+        
+        es.submit(() -> {
+            Thread.sleep(100);
+            held.unlock();
+            return null;
+        });
+        lock = lockKeeper.tryLockAndGet(5, TimeUnit.SECONDS, 1, 2);
+        assertNotNull(lock);
+        lock.unlock();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testSubclassesUseSegmentOfSuperclass() throws Exception {
+        // single lock per segment
+        LockKeeper lockKeeper = new LockKeeper(0, Bank.class);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(new Bank())).get();
+        
+        assertNull(lockKeeper.tryLockAndGet(new LocalBank()));
+        Lock lock = lockKeeper.tryLockAndGet("not a bank");
+        assertNotNull(lock);
+        lock.unlock();
+        es.submit(() -> held.unlock()).get();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testStats() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(0, Bank.class);
+        LockStats stats = lockKeeper.enableStats();
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(new Bank())).get();
+        es.submit(() -> {
+            Thread.sleep(100);
+            held.unlock();
+            return null;
+        });
+        lockKeeper.lockAndGet(new LocalBank(), "not a bank").unlock();
+        
+        assertEquals(2, stats.getAcquisitions());
+        assertEquals(1, stats.getContendedAcquisitions());
+        assertEquals(0, stats.getWaiters());
+        // segment of Bank comes after common segment
+        assertArrayEquals(new int[] { 1 }, stats.getHottestStripes(3));
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 20000)
+    public void testManyWaitersAreReleased() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(8);
+        ExecutorService es = Executors.newFixedThreadPool(500);
+        Lock held = lockKeeper.lockAndGet(-1);
+        List<Future<?>> fs = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final int k = i;
+            fs.add(es.submit(() -> {
+                lockKeeper.lockAndGet(-1, k).unlock();
+                return null;
+            }));
+        }
+        while (lockKeeper.waiters.size() < 500)
+            Thread.sleep(10);
+        held.unlock();
+        for (Future<?> f : fs)
+            f.get();
+        assertTrue(lockKeeper.waiters.isEmpty());
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testWaitersAreWokenInArrivalOrder() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(8);
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        Lock held = lockKeeper.lockAndGet(1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> first = es.submit(() -> {
+            Lock lock = lockKeeper.lockAndGet(1, 3);
+            release.await();
+            lock.unlock();
+            return null;
+        });
+        while (lockKeeper.waiters.size() < 1)
+            Thread.sleep(10);
+        Future<?> second = es.submit(() -> {
+            lockKeeper.lockAndGet(2, 3).unlock();
+            return null;
+        });
+        while (lockKeeper.waiters.size() < 2)
+            Thread.sleep(10);
+        
+        // both become eligible, but `3` is claimed by the first waiter
+        held.unlock();
+        while (lockKeeper.waiters.size() > 1)
+            Thread.sleep(10);
+        assertFalse(second.isDone());
+        release.countDown();
+        first.get();
+        second.get();
+        assertTrue(lockKeeper.waiters.isEmpty());
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 30000)
+    public void testNoLostWakeups() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(3, Spreaders.IDENTITY);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> fs = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int tt = t;
+            fs.add(es.submit(() -> {
+                Random rnd = new Random();
+                for (int i = 0; i < 2000; i++) {
+                    // overlapping sets of waiters, and single locks
+                    // which get in between woken waiters
+                    Lock lock;
+                    if (tt % 5 == 0)
+                        lock = lockKeeper.tryLockAndGet(rnd.nextInt(8));
+                    else {
+                        int k = rnd.nextInt(8);
+                        lock = lockKeeper.lockAndGet(rnd.nextBoolean()
+                                ? LockKeeper.LockType.READ : LockKeeper.LockType.WRITE,
+                                k, (k + 1) % 8, (k + 3) % 8);
+                    }
+                    if (lock != null)
+                        lock.unlock();
+                }
+                return null;
+            }));
+        }
+        // a lost wakeup leaves some thread parked, failing by timeout
+        for (Future<?> f : fs)
+            f.get();
+        assertTrue(lockKeeper.waiters.isEmpty());
+        es.shutdownNow();
+    }
+
+
+    @Test(timeout = 10000)
+    public void testDowngrade() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        LockKeeper.CompositeLock lock = (LockKeeper.CompositeLock) lockKeeper.lockAndGet(1, 2);
+        assertFalse(es.submit(() -> readInOtherThread(lockKeeper, 2)).get());
+        lock.downgrade();
+        assertTrue(es.submit(() -> readInOtherThread(lockKeeper, 2)).get());
+        assertNull(es.submit(() -> lockKeeper.tryLockAndGet(1)).get());
+        lock.unlock();
+        es.shutdownNow();
+    }
+    
+    
+    static boolean readInOtherThread(LockKeeper lockKeeper, Object o) {
+        Lock lock = lockKeeper.tryLockAndGet(LockKeeper.LockType.READ, o);
+        if (lock == null)
+            return false;
+        lock.unlock();
+        return true;
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testWithLock() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        assertFalse(lockKeeper.withLock(1, () -> CompletableFuture.supplyAsync(
+                () -> readInOtherThread(lockKeeper, 1), es).join()));
+        assertTrue(lockKeeper.withLock(LockKeeper.LockType.READ, 1, () -> CompletableFuture.supplyAsync(
+                () -> readInOtherThread(lockKeeper, 1), es).join()));
+        
+        // locks are released if the action fails
+        try {
+            lockKeeper.runLocked(() -> { throw new IllegalStateException(); }, 1, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Lock lock = es.submit(() -> lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 1, 2)).get();
+        assertNotNull(lock);
+        es.submit(lock::unlock).get();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testDiagnostics() throws Exception {
+        LockKeeper lockKeeper = new LockKeeper(8);
+        LockDiagnostics diagnostics = lockKeeper.enableDiagnostics();
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        CountDownLatch locked = new CountDownLatch(2);
+        // each thread holds one object and waits for another one
+        // held by other thread
+        Future<Thread> f1 = es.submit(() -> crossLock(lockKeeper, locked, "a", "b"));
+        Future<Thread> f2 = es.submit(() -> crossLock(lockKeeper, locked, "b", "a"));
+        // waiters are enqueued before their waits are recorded
+        while (diagnostics.inspect(0, TimeUnit.SECONDS).getStarved().size() < 2)
+            Thread.sleep(10);
+        
+        LockDiagnostics.Report r = diagnostics.inspect(0, TimeUnit.SECONDS);
+        assertEquals(1, r.getCycles().size());
+        assertEquals(2, r.getCycles().get(0).size());
+        assertEquals(2, r.getStarved().size());
+        assertTrue(diagnostics.inspect(1, TimeUnit.HOURS).getStarved().isEmpty());
+        
+        // waiting is given up, so locks are released
+        Thread t1 = f1.get();
+        Thread t2 = f2.get();
+        assertTrue(r.getCycles().get(0).containsAll(Arrays.asList(t1, t2)));
+        assertTrue(diagnostics.inspect(0, TimeUnit.SECONDS).isEmpty());
+        assertTrue(diagnostics.getOwners().isEmpty());
+        es.shutdownNow();
+    }
+    
+    
+    static Thread crossLock(LockKeeper lockKeeper, CountDownLatch locked, 
+                            Object own, Object other) throws InterruptedException {
+        Lock lock = lockKeeper.lockAndGet(own);
+        locked.countDown();
+        locked.await();
+        // the one which gives up first lets the other one in
+        Lock both = lockKeeper.tryLockAndGet(500, TimeUnit.MILLISECONDS, other, "c");
+        if (both != null)
+            both.unlock();
+        lock.unlock();
+        return Thread.currentThread();
+    }
 
 }
@@ -1,20 +1,38 @@
 package ru.salauyou.util.concurrent;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import org.junit.Test;
 
 import helpers.Helper;
 import helpers.Model.Bank;
+import helpers.Model.ForeignBank;
+import helpers.Model.LocalBank;
 import helpers.Model.Payment;
 import helpers.Model.Subj;
 import helpers.Model.Subject;
@@ -93,6 +111,785 @@ public class TestLockKeeperV2 {
         }
         es.shutdownNow();
     }
-
+    
+    
+    @Test(timeout = 10000)
+    public void testReadLocksAreShared() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        Object o = "shared";
+        int readers = 5;
+        CountDownLatch allIn = new CountDownLatch(readers);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(readers + 1);
+        List<Future<?>> rs = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            rs.add(es.submit(() -> {
+                Lock lock = lockKeeper.lockAndGet(LockKeeperV2.LockType.READ, o);
+                allIn.countDown();
+                release.await();
+                lock.unlock();
+                return null;
+            }));
+        }
+        // all readers must get the lock simultaneously
+        assertTrue(allIn.await(5, TimeUnit.SECONDS));
+        
+        // writer waits until all readers leave
+        AtomicInteger written = new AtomicInteger();
+        Future<?> w = es.submit(() -> {
+            Lock lock = lockKeeper.lockAndGet(LockKeeperV2.LockType.WRITE, o);
+            written.incrementAndGet();
+            lock.unlock();
+            return null;
+        });
+        Thread.sleep(100);
+        assertEquals(0, written.get());
+        release.countDown();
+        w.get();
+        for (Future<?> r : rs)
+            r.get();
+        assertEquals(1, written.get());
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 60000)
+    public void testReadWriteExclusion() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(2);
+        int keys = 8;
+        int[] values = new int[keys];
+        AtomicInteger[] activeReaders = new AtomicInteger[keys];
+        AtomicInteger[] activeWriters = new AtomicInteger[keys];
+        for (int i = 0; i < keys; i++) {
+            activeReaders[i] = new AtomicInteger();
+            activeWriters[i] = new AtomicInteger();
+        }
+        AtomicInteger violations = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < 20000; t++) {
+            tasks.add(es.submit(() -> {
+                Random rnd = new Random();
+                int a = rnd.nextInt(keys), b = rnd.nextInt(keys);
+                boolean write = rnd.nextInt(4) == 0;
+                Lock lock = lockKeeper.lockAndGet(write 
+                        ? LockKeeperV2.LockType.WRITE : LockKeeperV2.LockType.READ, a, b);
+                for (int k : new int[] { a, b }) {
+                    if (write) {
+                        if (activeWriters[k].incrementAndGet() > 1 || activeReaders[k].get() > 0)
+                            violations.incrementAndGet();
+                        values[k]++;
+                        activeWriters[k].decrementAndGet();
+                    } else {
+                        activeReaders[k].incrementAndGet();
+                        if (activeWriters[k].get() > 0)
+                            violations.incrementAndGet();
+                        activeReaders[k].decrementAndGet();
+                    }
+                    if (a == b)
+                        break;
+                }
+                lock.unlock();
+                return null;
+            }));
+        }
+        for (Future<Void> task : tasks)
+            task.get();
+        es.shutdownNow();
+        assertEquals(0, violations.get());
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testReentrancy() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        
+        Lock outer = lockKeeper.lockAndGet(1);
+        Lock inner = lockKeeper.lockAndGet(1, 2);            // doesn't self-deadlock
+        Lock read = lockKeeper.lockAndGet(LockKeeperV2.LockType.READ, 2);  // write -> read
+        read.unlock();
+        inner.unlock();
+        
+        // `2` is released, `1` is still held by outer lock
+        assertTrue(es.submit(() -> tryLockInOtherThread(lockKeeper, 2)).get());
+        Future<Boolean> f = es.submit(() -> tryLockInOtherThread(lockKeeper, 1));
+        Thread.sleep(100);
+        assertTrue(!f.isDone());
+        outer.unlock();
+        assertTrue(f.get());
+        es.shutdownNow();
+    }
+    
+    
+    @Test(expected = IllegalMonitorStateException.class)
+    public void testReadToWriteReentrancyIsRejected() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        lockKeeper.lockAndGet(LockKeeperV2.LockType.READ, 1);
+        lockKeeper.lockAndGet(LockKeeperV2.LockType.WRITE, 1);
+    }
+    
+    
+    static boolean tryLockInOtherThread(LockKeeperV2 lockKeeper, Object o) 
+                                                  throws InterruptedException {
+        lockKeeper.lockAndGet(o).unlock();
+        return true;
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testTryLockAndGet() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(1)).get();
+        
+        assertNull(lockKeeper.tryLockAndGet(1));
+        assertNull(lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 1, 2));
+        long start = System.nanoTime();
+        assertNull(lockKeeper.tryLockAndGet(100, TimeUnit.MILLISECONDS, 2, 1));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(0, lockKeeper.waitersCount());
+        
+        // nothing of `2` is left acquired
+        Lock lock = lockKeeper.tryLockAndGet(2);
+        assertNotNull(lock);
+        lock.unlock();
+        
+        es.submit(() -> {
+            Thread.sleep(100);
+            held.unlock();
+            return null;
+        });
+        lock = lockKeeper.tryLockAndGet(5, TimeUnit.SECONDS, 1, 2);
+        assertNotNull(lock);
+        lock.unlock();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testCancelledWaitersLeaveWaitList() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4, false, Spreaders.IDENTITY);
+        Lock held = lockKeeper.lockAsync(1).get();
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        
+        // timed out and interrupted waiters leave nothing acquired
+        Future<Lock> timed = es.submit(() -> lockKeeper.tryLockAndGet(200, TimeUnit.MILLISECONDS, 1, 2));
+        Future<?> interrupted = es.submit(() -> lockKeeper.lockAndGet(3, 1));
+        while (lockKeeper.waitersCount() < 2)
+            Thread.sleep(10);
+        assertNull(timed.get());
+        interrupted.cancel(true);
+        while (lockKeeper.waitersCount() > 0)
+            Thread.sleep(10);
+        Lock free = lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 2, 3);
+        assertNotNull(free);
+        free.unlock();
+        
+        // remaining waiter is not affected by cancelled ones
+        CompletableFuture<Lock> f1 = lockKeeper.lockAsync(1, 2);
+        CompletableFuture<Lock> f2 = lockKeeper.lockAsync(1, 3);
+        assertTrue(f1.cancel(false));
+        held.unlock();
+        f2.get(5, TimeUnit.SECONDS).unlock();
+        assertEquals(0, lockKeeper.waitersCount());
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testWaiterIsSignalledByLastConflictingStripe() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4, false, Spreaders.IDENTITY);
+        for (int[] order : new int[][] { { 1, 2, 3 }, { 3, 2, 1 }, { 2, 3, 1 } }) {
+            Lock[] held = new Lock[4];
+            for (int k = 1; k <= 3; k++)
+                held[k] = lockKeeper.lockAsync(k).get();
+            CompletableFuture<Lock> f = lockKeeper.lockAsync(1, 2, 3);
+            
+            // the waiter moves to a wait list of the next unavailable stripe
+            for (int i = 0; i < 2; i++) {
+                held[order[i]].unlock();
+                assertFalse(f.isDone());
+                assertEquals(1, lockKeeper.waitersCount());
+            }
+            held[order[2]].unlock();
+            f.get(5, TimeUnit.SECONDS).unlock();
+            assertEquals(0, lockKeeper.waitersCount());
+        }
+    }
+    
+    
+    @Test(timeout = 30000)
+    public void testNoLostWakeupsUnderContention() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(3, false, Spreaders.IDENTITY);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        AtomicInteger acquired = new AtomicInteger();
+        List<Future<?>> fs = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            fs.add(es.submit(() -> {
+                Random rnd = new Random();
+                for (int i = 0; i < 20000; i++) {
+                    Object[] keys = { rnd.nextInt(8), rnd.nextInt(8), rnd.nextInt(8) };
+                    LockKeeperV2.LockType type = rnd.nextBoolean()
+                            ? LockKeeperV2.LockType.READ : LockKeeperV2.LockType.WRITE;
+                    Lock lock = rnd.nextInt(4) == 0
+                            ? lockKeeper.tryLockAndGet(type, rnd.nextInt(100), TimeUnit.MICROSECONDS, keys)
+                            : lockKeeper.lockAndGet(type, keys);
+                    if (lock != null) {
+                        acquired.incrementAndGet();
+                        lock.unlock();
+                    }
+                }
+                return null;
+            }));
+        }
+        // a lost wakeup hangs some thread, failing by timeout
+        for (Future<?> f : fs)
+            f.get();
+        es.shutdownNow();
+        assertTrue(acquired.get() > 0);
+        assertEquals(0, lockKeeper.waitersCount());
+        for (int i = 0; i < 8; i++)
+            assertTrue(LockKeeperV2.isAvailable(lockKeeper.stripes.get(i), true));
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testBackoffOnReservedStripe() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        lockKeeper.setBackoff(new LockKeeperV2.Backoff(10, 10, 1000));
+        int lo = lockKeeper.stripeForObject(1);
+        
+        // emulate a thread stuck in reservation stage
+        lockKeeper.stripes.set(lo, LockKeeperV2.setReserved(0));
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Future<Boolean> f = es.submit(() -> tryLockInOtherThread(lockKeeper, 1));
+        Thread.sleep(100);
+        assertTrue(!f.isDone());
+        lockKeeper.unreserve(lo);
+        assertTrue(f.get());
+        assertTrue(lockKeeper.getSpinCount() > 0);
+        es.shutdownNow();
+    }
+    
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testBackoffValidation() {
+        new LockKeeperV2.Backoff(-1, 0, 1);
+    }
+    
+    
+    @Test
+    public void testPaddedLayout() throws Exception {
+        LockKeeperV2 compact = new LockKeeperV2(4, false, Spreaders.IDENTITY);
+        LockKeeperV2 padded = new LockKeeperV2(4, true, Spreaders.IDENTITY, Bank.class);
+        assertEquals(0, compact.spacingLog);
+        assertEquals(16, compact.stripes.length());
+        assertEquals(4, padded.spacingLog);
+        assertEquals(2 * 16 * 16, padded.stripes.length());
+        
+        // each stripe word starts its own 64-byte line
+        assertEquals(3, compact.stripeForObject(3));
+        assertEquals(3 * 16, padded.stripeForObject(3));
+        assertEquals((16 + 5) * 16, padded.stripe(padded.shiftForClass(Bank.class), 5));
+        Lock lock = padded.lockAndGet(3);
+        for (int i = 0; i < padded.stripes.length(); i++)
+            assertEquals(i == 3 * 16, !LockKeeperV2.isAvailable(padded.stripes.get(i), true));
+        lock.unlock();
+    }
+    
+    
+    @Test
+    public void testCollectLocks() {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        Random rnd = new Random();
+        for (int n : new int[] { 1, 2, 3, 10, 16, 17, 100 }) {
+            Object[] os = new Object[n];
+            for (int i = 0; i < n; i++)
+                os[i] = rnd.nextInt(40);
+            int[] expected = Stream.of(os).mapToInt(lockKeeper::stripeForObject)
+                    .distinct().sorted().toArray();
+            assertArrayEquals(expected, lockKeeper.collectLocks(os));
+        }
+        LockKeeperV2 identity = new LockKeeperV2(4, false, Spreaders.IDENTITY);
+        assertArrayEquals(new int[] { 3, 5 }, identity.collectLocks(5, 3));
+        assertArrayEquals(new int[] { 3 }, identity.collectLocks(3, 19));
+    }
+    
+    
+    @Test
+    public void testSpreading() {
+        // ids with poor lowest bits fall into one stripe without spreading
+        LockKeeperV2 identity = new LockKeeperV2(6, false, Spreaders.IDENTITY);
+        LockKeeperV2 murmur = new LockKeeperV2(6);
+        long[] ids = LongStream.range(1, 1000).map(i -> i * 1024).toArray();
+        assertEquals(1, LongStream.of(ids).mapToInt(identity::stripeForKey).distinct().count());
+        assertEquals(64, LongStream.of(ids).mapToInt(murmur::stripeForKey).distinct().count());
+        
+        // primitive keys use the same stripes as boxed ones
+        LockKeeperV2 classed = new LockKeeperV2(6, Long.class);
+        for (long id : ids)
+            assertEquals(classed.stripeForObject(id), classed.stripeForKey(id));
+    }
+    
+    
+    @Test
+    public void testSubclassesUseSegmentOfSuperclass() {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4, Bank.class, Subj.class);
+        int bankShift = lockKeeper.shiftForClass(Bank.class);
+        assertTrue(bankShift > 0);
+        assertEquals(bankShift, lockKeeper.shiftForClass(LocalBank.class));
+        assertEquals(bankShift, lockKeeper.shiftForClass(ForeignBank.class));
+        assertEquals(0, lockKeeper.shiftForClass(String.class));
+        assertTrue(lockKeeper.shiftForClass(Subj.class) > 0);
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testStats() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        assertNull(lockKeeper.getStats());
+        LockStats stats = lockKeeper.enableStats();
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(1)).get();
+        
+        assertNull(lockKeeper.tryLockAndGet(1));
+        Future<?> f = es.submit(() -> {
+            Thread.sleep(100);
+            assertEquals(1, stats.getWaiters());
+            held.unlock();
+            return null;
+        });
+        lockKeeper.lockAndGet(1, 2).unlock();
+        f.get();
+        
+        assertEquals(2, stats.getAcquisitions());
+        assertEquals(1, stats.getContendedAcquisitions());
+        assertEquals(0, stats.getWaiters());
+        assertEquals(1, LongStream.of(stats.getWaitTimeHistogram()).sum());
+        int s = lockKeeper.stripeForObject(1);
+        assertArrayEquals(new int[] { s }, stats.getHottestStripes(3));
+        assertEquals(2, stats.getStripeContention(s));
+        es.shutdownNow();
+        
+        // conflict counters of padded keeper don't share cache lines
+        LockKeeperV2 padded = new LockKeeperV2(4, true, Spreaders.IDENTITY);
+        LockStats ps = padded.enableStats();
+        Lock lock = padded.lockAsync(1, 2).get();
+        assertNull(padded.tryLockAndGet(2));
+        assertEquals(16 << LockStats.PADDED_SPACING_LOG, ps.conflicts.length());
+        assertEquals(1, ps.getStripeContention(2));
+        assertEquals(0, ps.getStripeContention(1));
+        assertArrayEquals(new int[] { 2 }, ps.getHottestStripes(3));
+        lock.unlock();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testLockAsync() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        Lock held = lockKeeper.lockAsync(1).get();
+        
+        CompletableFuture<Lock> f1 = lockKeeper.lockAsync(1, 2);
+        CompletableFuture<Lock> f2 = lockKeeper.lockAsync(LockKeeperV2.LockType.READ, 1);
+        CompletableFuture<Lock> f3 = lockKeeper.lockAsync(1);
+        assertFalse(f1.isDone() || f2.isDone() || f3.isDone());
+        assertEquals(3, lockKeeper.waitersCount());
+        
+        // cancelled waiter leaves and doesn't acquire anything
+        assertTrue(f2.cancel(false));
+        assertEquals(2, lockKeeper.waitersCount());
+        
+        // released from other thread, completed in it
+        Thread t = new Thread(held::unlock);
+        t.start();
+        t.join();
+        Lock lock = f1.get(5, TimeUnit.SECONDS);
+        assertFalse(f3.isDone());
+        lock.unlock();
+        f3.get(5, TimeUnit.SECONDS).unlock();
+        
+        assertEquals(0, lockKeeper.waitersCount());
+        lock = lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 1, 2);
+        assertNotNull(lock);
+        lock.unlock();
+        
+        // completion in executor
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        held = lockKeeper.lockAndGet(3);
+        f1 = lockKeeper.lockAsync(LockKeeperV2.LockType.WRITE, es, 3);
+        held.unlock();
+        f1.get(5, TimeUnit.SECONDS).unlock();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testDoubleUnlockIsRejected() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        
+        // write bit taken by other owner meanwhile stays set
+        Lock lock = lockKeeper.lockAsync(1).get();
+        lock.unlock();
+        Lock other = lockKeeper.lockAsync(1).get();
+        assertDoubleUnlockFails(lock);
+        assertNull(lockKeeper.tryLockAndGet(1));
+        other.unlock();
+        
+        // reader count doesn't underflow
+        lock = lockKeeper.lockAsync(LockKeeperV2.LockType.READ, 2).get();
+        lock.unlock();
+        assertDoubleUnlockFails(lock);
+        lock = lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 1, 2);
+        assertNotNull(lock);
+        lock.unlock();
+        assertDoubleUnlockFails(lock);
+        try {
+            lockKeeper.release(lockKeeper.stripeForObject(2), LockKeeperV2.LockType.READ);
+            fail();
+        } catch (IllegalMonitorStateException e) {
+            // expected
+        }
+        assertTrue(LockKeeperV2.isAvailable(lockKeeper.stripes.get(lockKeeper.stripeForObject(2)), true));
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testReleasedLockIsNotConverted() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        int s1 = lockKeeper.stripeForObject(1), s2 = lockKeeper.stripeForObject(2);
+        
+        // downgrade doesn't add a reader to a stripe of other locker
+        LockKeeperV2.CompositeLock lock 
+                = (LockKeeperV2.CompositeLock) lockKeeper.lockAsync(1).get();
+        lock.unlock();
+        Lock other = lockKeeper.lockAsync(LockKeeperV2.LockType.READ, 1).get();
+        try {
+            lock.downgrade();
+            fail();
+        } catch (IllegalMonitorStateException e) {
+            // expected
+        }
+        other.unlock();
+        assertTrue(LockKeeperV2.isAvailable(lockKeeper.stripes.get(s1), true));
+        
+        // upgrade doesn't take the only reader's stripe of other locker
+        lock = (LockKeeperV2.CompositeLock) lockKeeper.lockAsync(LockKeeperV2.LockType.READ, 2).get();
+        lock.unlock();
+        other = lockKeeper.lockAsync(LockKeeperV2.LockType.READ, 2).get();
+        try {
+            lock.tryUpgrade();
+            fail();
+        } catch (IllegalMonitorStateException e) {
+            // expected
+        }
+        other.unlock();
+        assertTrue(LockKeeperV2.isAvailable(lockKeeper.stripes.get(s2), true));
+    }
+    
+    
+    static void assertDoubleUnlockFails(Lock lock) {
+        try {
+            lock.unlock();
+            fail();
+        } catch (IllegalMonitorStateException e) {
+            // expected
+        }
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testDowngradeAndUpgrade() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        LockKeeperV2.CompositeLock lock 
+                = (LockKeeperV2.CompositeLock) lockKeeper.lockAndGet(1, 2);
+        assertNull(es.submit(() -> lockKeeper.tryLockAndGet(LockKeeperV2.LockType.READ, 2)).get());
+        
+        // readers get in after downgrade, writers don't
+        lock.downgrade();
+        Lock other = es.submit(() -> lockKeeper.tryLockAndGet(LockKeeperV2.LockType.READ, 2)).get();
+        assertNotNull(other);
+        assertNull(es.submit(() -> lockKeeper.tryLockAndGet(1)).get());
+        
+        // can't upgrade while other reader is present
+        assertFalse(lock.tryUpgrade());
+        es.submit(() -> other.unlock()).get();
+        assertTrue(lock.tryUpgrade());
+        assertNull(es.submit(() -> lockKeeper.tryLockAndGet(LockKeeperV2.LockType.READ, 1)).get());
+        lock.unlock();
+        
+        Lock free = es.submit(() -> lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 1, 2)).get();
+        assertNotNull(free);
+        es.submit(() -> free.unlock()).get();
+        
+        // reentered stripes can't change type
+        Lock outer = lockKeeper.lockAndGet(LockKeeperV2.LockType.READ, 1);
+        lock = (LockKeeperV2.CompositeLock) lockKeeper.lockAndGet(LockKeeperV2.LockType.READ, 1, 2);
+        try {
+            lock.tryUpgrade();
+            fail();
+        } catch (IllegalMonitorStateException e) {
+            // expected
+        }
+        lock.unlock();
+        outer.unlock();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testAutoResize() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4, false, Spreaders.IDENTITY);
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+        // steps are made manually
+        ScheduledFuture<?> task = lockKeeper.enableAutoResize(1, ses, 1, TimeUnit.HOURS);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        
+        // `1` and `3` share a stripe when there are 2 stripes, but not 16
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(1)).get();
+        Lock lock = lockKeeper.tryLockAndGet(3);
+        assertNotNull(lock);
+        lock.unlock();
+        
+        // in transition, objects are locked by stripes of both sizes
+        lockKeeper.resizer.resizeTo(1);
+        assertEquals(1, lockKeeper.getSegmentSizeLog());
+        assertNull(lockKeeper.tryLockAndGet(1));
+        assertNull(lockKeeper.tryLockAndGet(3));
+        
+        // transition lasts until locks of previous phase are released
+        lockKeeper.resizer.run();
+        assertTrue(lockKeeper.phase.isTransition());
+        es.submit(held::unlock).get();
+        lockKeeper.resizer.run();
+        assertFalse(lockKeeper.phase.isTransition());
+        
+        // false conflicts make it grow back
+        Lock held2 = es.submit(() -> lockKeeper.lockAndGet(1)).get();
+        for (int i = 0; i < 1000; i++) {
+            assertNull(lockKeeper.tryLockAndGet(3));
+            lockKeeper.lockAndGet(2).unlock();
+        }
+        lockKeeper.resizer.run();
+        assertEquals(2, lockKeeper.getSegmentSizeLog());
+        assertTrue(lockKeeper.phase.isTransition());
+        es.submit(held2::unlock).get();
+        
+        task.cancel(false);
+        ses.shutdownNow();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testAutoResizeWaitsForEarlierLocks() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4, false, Spreaders.IDENTITY);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        // `9` is locked by stripe 9 of 16, but by stripe 1 of 8
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(9)).get();
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+        ScheduledFuture<?> task = lockKeeper.enableAutoResize(3, ses, 1, TimeUnit.HOURS);
+        
+        // no false conflicts, but the lock taken before must be released first
+        for (int r = 0; r < 3; r++) {
+            for (int i = 0; i < 1000; i++)
+                lockKeeper.lockAndGet(2).unlock();
+            lockKeeper.resizer.run();
+        }
+        assertNull(lockKeeper.tryLockAndGet(9));
+        assertEquals(4, lockKeeper.getSegmentSizeLog());
+        
+        es.submit(held::unlock).get();
+        lockKeeper.resizer.run();
+        assertEquals(3, lockKeeper.getSegmentSizeLog());
+        lockKeeper.resizer.run();
+        assertFalse(lockKeeper.phase.isTransition());
+        held = es.submit(() -> lockKeeper.lockAndGet(9)).get();
+        assertNull(lockKeeper.tryLockAndGet(9));
+        es.submit(held::unlock).get();
+        
+        task.cancel(false);
+        ses.shutdownNow();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testAutoResizeKeepsStripesOfZeroHash() throws Exception {
+        // spreader not mapping 0 to 0: `0` is locked by stripe 5
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4, false, h -> h + 5);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(0, "")).get();
+        ScheduledExecutorService ses = Executors.newSingleThreadScheduledExecutor();
+        ScheduledFuture<?> task = lockKeeper.enableAutoResize(3, ses, 1, TimeUnit.HOURS);
+        assertTrue(lockKeeper.phase.tagged);
+        assertNull(lockKeeper.tryLockAndGet(0));
+        assertNull(lockKeeper.tryLockAndGet(""));
+        es.submit(held::unlock).get();
+        
+        // null is mapped to stripe 0 in both modes
+        held = lockKeeper.lockAndGet((Object) null);
+        assertFalse(LockKeeperV2.isAvailable(lockKeeper.stripes.get(0), true));
+        held.unlock();
+        
+        task.cancel(false);
+        ses.shutdownNow();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testLockAll() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(8, false, Spreaders.IDENTITY);
+        Lock held = lockKeeper.lockAndGet(6);
+        List<CompletableFuture<Lock>> fs = lockKeeper.lockAll(LockKeeperV2.LockType.WRITE, 
+                Arrays.asList(new Object[] { 1, 2 }, new Object[] { 2, 3 }, 
+                              new Object[] { 4, 5 }, new Object[] { 5, 6 }));
+        
+        // non-conflicting sets are granted at once
+        assertTrue(fs.get(0).isDone());
+        assertFalse(fs.get(1).isDone());
+        assertTrue(fs.get(2).isDone());
+        assertFalse(fs.get(3).isDone());
+        assertEquals(2, lockKeeper.waitersCount());
+        
+        fs.get(0).get().unlock();
+        fs.get(1).get(5, TimeUnit.SECONDS).unlock();
+        held.unlock();
+        assertFalse(fs.get(3).isDone());
+        fs.get(2).get().unlock();
+        fs.get(3).get(5, TimeUnit.SECONDS).unlock();
+        assertEquals(0, lockKeeper.waitersCount());
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testDiagnostics() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(8);
+        LockDiagnostics diagnostics = lockKeeper.enableDiagnostics();
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        CountDownLatch locked = new CountDownLatch(2);
+        // each thread holds one object and waits for another one
+        // held by other thread
+        Future<Thread> f1 = es.submit(() -> crossLock(lockKeeper, locked, "a", "b"));
+        Future<Thread> f2 = es.submit(() -> crossLock(lockKeeper, locked, "b", "a"));
+        while (lockKeeper.waitersCount() < 2)
+            Thread.sleep(10);
+        
+        LockDiagnostics.Report r = diagnostics.inspect(0, TimeUnit.SECONDS);
+        assertEquals(1, r.getCycles().size());
+        assertEquals(2, r.getCycles().get(0).size());
+        assertEquals(2, r.getStarved().size());
+        assertTrue(diagnostics.inspect(1, TimeUnit.HOURS).getStarved().isEmpty());
+        
+        // waiting is given up, so locks are released
+        Thread t1 = f1.get();
+        Thread t2 = f2.get();
+        assertTrue(r.getCycles().get(0).containsAll(Arrays.asList(t1, t2)));
+        assertTrue(diagnostics.inspect(0, TimeUnit.SECONDS).isEmpty());
+        assertTrue(diagnostics.getOwners().isEmpty());
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testWithLock() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        assertNull(lockKeeper.withLock(1, () -> CompletableFuture.supplyAsync(
+                () -> lockKeeper.tryLockAndGet(LockKeeperV2.LockType.READ, 1), es).join()));
+        Lock other = lockKeeper.withLock(LockKeeperV2.LockType.READ, 1, () -> CompletableFuture.supplyAsync(
+                () -> lockKeeper.tryLockAndGet(LockKeeperV2.LockType.READ, 1), es).join());
+        assertNotNull(other);
+        es.submit(other::unlock).get();
+        
+        // locks are released if the action fails
+        try {
+            lockKeeper.runLocked(() -> { throw new IllegalStateException(); }, 1, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Lock lock = es.submit(() -> lockKeeper.tryLockAndGet(0, TimeUnit.SECONDS, 1, 2)).get();
+        assertNotNull(lock);
+        es.submit(lock::unlock).get();
+        
+        // reentered stripes remain held by outer lock
+        Lock outer = lockKeeper.lockAndGet(1);
+        lockKeeper.runLocked(() -> { }, 1, 2);
+        assertNull(es.submit(() -> lockKeeper.tryLockAndGet(1)).get());
+        lock = es.submit(() -> lockKeeper.tryLockAndGet(2)).get();
+        assertNotNull(lock);
+        es.submit(lock::unlock).get();
+        outer.unlock();
+        es.shutdownNow();
+    }
+    
+    
+    @Test(timeout = 10000)
+    public void testOptimisticRead() throws Exception {
+        LockKeeperV2 lockKeeper = new LockKeeperV2(4);
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        LockKeeperV2.Stamp stamp = lockKeeper.tryOptimisticRead(1, 2);
+        assertNotNull(stamp);
+        
+        // readers don't invalidate stamps
+        lockKeeper.lockAndGet(LockKeeperV2.LockType.READ, 1, 2).unlock();
+        assertTrue(lockKeeper.validate(stamp));
+        
+        // writers do, and no stamp is given while they hold a lock
+        Lock held = es.submit(() -> lockKeeper.lockAndGet(2)).get();
+        assertFalse(lockKeeper.validate(stamp));
+        assertNull(lockKeeper.tryOptimisticRead(2));
+        assertNotNull(lockKeeper.tryOptimisticRead(3));
+        es.submit(held::unlock).get();
+        stamp = lockKeeper.tryOptimisticRead(2);
+        assertTrue(lockKeeper.validate(stamp));
+        
+        // upgrade is a write acquisition
+        LockKeeperV2.CompositeLock lock = (LockKeeperV2.CompositeLock)
+                lockKeeper.lockAndGet(LockKeeperV2.LockType.READ, 2);
+        assertTrue(lockKeeper.validate(stamp));
+        assertTrue(lock.tryUpgrade());
+        assertFalse(lockKeeper.validate(stamp));
+        lock.unlock();
+        assertFalse(lockKeeper.validate(null));
+        
+        // versions don't wrap around soon
+        stamp = lockKeeper.tryOptimisticRead(3);
+        for (int i = 0; i < 1 << 16; i++)
+            lockKeeper.lockAndGet(3).unlock();
+        assertFalse(lockKeeper.validate(stamp));
+        
+        // downgrade ends writing
+        lock = (LockKeeperV2.CompositeLock) lockKeeper.lockAndGet(3);
+        assertNull(lockKeeper.tryOptimisticRead(3));
+        lock.downgrade();
+        stamp = lockKeeper.tryOptimisticRead(3);
+        lock.unlock();
+        assertTrue(lockKeeper.validate(stamp));
+        
+        // versions of padded stripes don't share cache lines
+        LockKeeperV2 padded = new LockKeeperV2(4, true, Spreaders.IDENTITY);
+        assertEquals(16 * 8, padded.versions.length());
+        padded.lockAndGet(3).unlock();
+        assertEquals(1, padded.versions.get(3 * 8));
+        es.shutdownNow();
+    }
+    
+    
+    static Thread crossLock(LockKeeperV2 lockKeeper, CountDownLatch locked, 
+                            Object own, Object other) throws InterruptedException {
+        Lock lock = lockKeeper.lockAndGet(own);
+        locked.countDown();
+        locked.await();
+        // the one which gives up first lets the other one in
+        Lock both = lockKeeper.tryLockAndGet(500, TimeUnit.MILLISECONDS, other, "c");
+        if (both != null)
+            both.unlock();
+        lock.unlock();
+        return Thread.currentThread();
+    }
 
 }